@@ -5,21 +5,143 @@ import org.capnproto.StructList;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
 
 import io.goshawkdb.client.capnp.CapabilitiesCap;
 import io.goshawkdb.client.capnp.TransactionCap;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
 
 final class Cache {
+    // A value is only kept as a view onto the message it arrived in if it accounts for at least
+    // 1/COPY_OUT_RATIO of the memory that would be pinned. Smaller values are copied out, so that
+    // a few cached bytes cannot keep a large network buffer alive.
+    static final int COPY_OUT_RATIO = 2;
+    // The share of the budget available to the protected segment.
+    static final int PROTECTED_PERCENT = 80;
+    // Rough per-entry and per-reference costs on top of the value itself.
+    static final int ENTRY_WEIGHT = 96;
+    static final int REFERENCE_WEIGHT = 48;
+
+    // The number of recently seen versions remembered for interning. Must be a power of two.
+    static final int INTERNED_VERSIONS = 256;
+    // The number of stripes is the next power of two at or above this multiple of the cores.
+    static final int STRIPES_PER_CORE = 4;
+    static final int MAX_STRIPES = 64;
+
+    private static final int SEGMENT_NONE = 0;
+    private static final int SEGMENT_PROBATION = 1;
+    private static final int SEGMENT_PROTECTED = 2;
+
+    // What updateFromWrite did: found we already had the version, added a value we didn't have,
+    // replaced a value we had evicted, or replaced one we still held.
+    private static final int WRITE_UNCHANGED = 0;
+    private static final int WRITE_ADDED = 1;
+    private static final int WRITE_RELOADED = 2;
+    private static final int WRITE_REPLACED = 3;
+
     static class ValueRef {
+        // Null in copies handed out by read.
+        VarUUId vUUId;
         TxnId version;
         ByteBuffer value;
         RefCap[] references;
-        MessageReaderRefCount reader;
+        // Keeps value's memory alive: the message it arrived in, its buffer in the off-heap arena,
+        // or its entry in the shared value store. Null if value is on the heap.
+        ReferenceCounted owner;
         Capability cap;
+        // The epoch in which version was last confirmed by the server.
+        int epoch;
+        // Set by reads, which only hold the read lock, and consumed by eviction. An entry found
+        // to have been read when it reaches the end of its segment's list gets promoted or a
+        // second chance rather than being evicted or demoted.
+        volatile boolean accessed;
+        // Eviction state, all guarded by the stripe's write lock. Entries are on a segment's list
+        // whilst they are not pinned. An entry without a value only records the capability we
+        // have discovered on its object, and weighs ENTRY_WEIGHT: it is removed altogether once
+        // it reaches the end of probation.
+        ValueRef prev;
+        ValueRef next;
+        int segment = SEGMENT_NONE;
+        long weight;
+        // The batch of updates in which the entry was last written.
+        long written;
+        boolean root;
+        int pins;
+        // True if we dropped the value but the server still thinks we have it.
+        boolean evicted;
+
+        boolean isPinned() {
+            return root || pins > 0;
+        }
+    }
+
+    // A sentinel-headed circular list of entries, least recently used first. Its weight is also
+    // added to total, which is shared by the same segment of every stripe.
+    private static final class Segment {
+        final ValueRef head = new ValueRef();
+        final AtomicLong total;
+        long weight = 0;
+
+        Segment(final AtomicLong total) {
+            this.total = total;
+            head.prev = head;
+            head.next = head;
+        }
+
+        ValueRef lru() {
+            return head.next == head ? null : head.next;
+        }
+
+        void add(final ValueRef vr) {
+            vr.prev = head.prev;
+            vr.next = head;
+            head.prev.next = vr;
+            head.prev = vr;
+            weight += vr.weight;
+            total.addAndGet(vr.weight);
+        }
+
+        void remove(final ValueRef vr) {
+            vr.prev.next = vr.next;
+            vr.next.prev = vr.prev;
+            vr.prev = null;
+            vr.next = null;
+            weight -= vr.weight;
+            total.addAndGet(-vr.weight);
+        }
+
+        void clear() {
+            head.prev = head;
+            head.next = head;
+            total.addAndGet(-weight);
+            weight = 0;
+        }
+    }
+
+    // A share of the entries, with its own lock. An entry's cap and its value fields are guarded
+    // by the write lock of the entry's stripe.
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        final VarUUIdMap<ValueRef> m = new VarUUIdMap<>();
+        final Segment probation;
+        final Segment protectedSegment;
+        // The number of entries holding a version, and the size of their values.
+        long entries = 0;
+        long valueBytes = 0;
+
+        Stripe(final AtomicLong probationWeight, final AtomicLong protectedWeight) {
+            probation = new Segment(probationWeight);
+            protectedSegment = new Segment(protectedWeight);
+        }
     }
 
     static class RefCap {
@@ -30,160 +152,728 @@ final class Cache {
             vUUId = varUUId;
             cap = Capability.fromCapnp(capReader);
         }
+
+        RefCap(final VarUUId varUUId, final Capability capability) {
+            vUUId = varUUId;
+            cap = capability;
+        }
     }
 
-    private final Object lock = new Object();
-    private final HashMap<VarUUId, ValueRef> m = new HashMap<>();
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    // Bumped on each reconnection. The server knows nothing of entries from earlier epochs, so it
+    // may legitimately contradict them. Only changed from the event loop.
+    private volatile int epoch = 0;
+    // The buffers kept alive by cached readers, with the number of entries pinning each. A buffer
+    // can be shared by entries in different stripes, so this is guarded by its own monitor.
+    private final IdentityHashMap<ByteBuf, Integer> pinned = new IdentityHashMap<>();
+    private long pinnedBytes = 0;
+    // Segmented LRU: entries start on probation, and are promoted to the protected segment if
+    // they are read again. When over budget, values are evicted from probation first, so a scan
+    // through many objects cannot flush out the ones that are used repeatedly. Values of pinned
+    // entries do not count towards the budget. The budget is shared by all the stripes: each has
+    // its own lists, and eviction takes victims from them in turn, so a stripe which the hashing
+    // favours may hold more than its share.
+    private final long limit;
+    private final long protectedLimit;
+    private final AtomicLong probationWeight = new AtomicLong();
+    private final AtomicLong protectedWeight = new AtomicLong();
+    // The stripe eviction takes its next victim from. Only a hint, so races are harmless.
+    private final AtomicInteger nextVictim = new AtomicInteger();
+    // Identifies the message currently being applied. Only changed from the event loop.
+    private volatile long batch = 0;
+    // Versions recently seen in updates, indexed by hash, so that the many entries written by the
+    // same txn share one TxnId. Only used from the event loop.
+    private final TxnId[] versions = new TxnId[INTERNED_VERSIONS];
+
+    // Statistics, which are only ever added to. Hits and misses are recorded by the readers.
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder abortUpdates = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Null unless values are to be cached off-heap.
+    private final ValueArena arena;
+    // Null unless values are to be shared with other connections' caches.
+    private final ValueStore store;
+
+    // limit is the budget in bytes for cached values, or Long.MAX_VALUE for no limit.
+    Cache(final long limit, final ValueArena arena, final ValueStore store) {
+        this.arena = arena;
+        this.store = store;
+        final int wanted = Math.min(MAX_STRIPES, STRIPES_PER_CORE * Runtime.getRuntime().availableProcessors());
+        final int count = Integer.highestOneBit(wanted * 2 - 1);
+        stripes = new Stripe[count];
+        for (int idx = 0; idx < count; idx++) {
+            stripes[idx] = new Stripe(probationWeight, protectedWeight);
+        }
+        stripeMask = count - 1;
+        this.limit = limit;
+        protectedLimit = limit / 100 * PROTECTED_PERCENT;
+    }
 
-    Cache() {
+    private Stripe stripe(final VarUUId vUUId) {
+        final int h = vUUId.hashCode();
+        return stripes[(h ^ (h >>> 16)) & stripeMask];
     }
 
     void clear() {
-        m.forEach(((vUUId, valueRef) -> {
-            if (valueRef.reader != null) {
-                valueRef.reader.release();
+        for (Stripe stripe : stripes) {
+            final long stamp = stripe.lock.writeLock();
+            try {
+                stripe.m.forEach(valueRef -> setOwner(valueRef, null));
+                stripe.m.clear();
+                stripe.probation.clear();
+                stripe.protectedSegment.clear();
+                stripe.entries = 0;
+                stripe.valueBytes = 0;
+            } finally {
+                stripe.lock.unlockWrite(stamp);
             }
-        }));
-        m.clear();
+        }
+    }
+
+    // The number of bytes of network buffers currently kept alive by cached values.
+    long pinnedBytes() {
+        synchronized (pinned) {
+            return pinnedBytes;
+        }
     }
 
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    // The occupancy figures are summed stripe by stripe, so they need not describe a single
+    // moment when there are concurrent updates.
+    CacheStats stats() {
+        long entries = 0;
+        long valueBytes = 0;
+        for (Stripe stripe : stripes) {
+            final long stamp = stripe.lock.readLock();
+            try {
+                entries += stripe.entries;
+                valueBytes += stripe.valueBytes;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), loads.sum(), abortUpdates.sum(), deletes.sum(), evictions.sum(),
+                entries, valueBytes, weight(), pinnedBytes());
+    }
+
+    // Roots are never evicted.
     void setRoots(final Map<String, RefCap> roots) {
         roots.forEach((name, rc) -> {
-            final ValueRef vr = new ValueRef();
-            vr.cap = rc.cap;
-            m.put(rc.vUUId, vr);
+            final Stripe stripe = stripe(rc.vUUId);
+            final long stamp = stripe.lock.writeLock();
+            try {
+                final ValueRef vr = entry(stripe, rc.vUUId);
+                vr.cap = rc.cap;
+                vr.root = true;
+                unlink(stripe, vr);
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
         });
     }
 
-    ValueRef get(final VarUUId vUUId) {
-        synchronized (lock) {
-            return m.get(vUUId);
+    // Pins are counted: the entry can be evicted again once it has been unpinned as many times
+    // as it was pinned.
+    void pin(final VarUUId vUUId) {
+        final Stripe stripe = stripe(vUUId);
+        final long stamp = stripe.lock.writeLock();
+        try {
+            final ValueRef vr = entry(stripe, vUUId);
+            vr.pins++;
+            unlink(stripe, vr);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
         }
     }
 
-    void updateFromTxnCommit(final TransactionCap.ClientTxn.Reader txn, final TxnId txnId) {
-        final Iterator<TransactionCap.ClientAction.Reader> actionIt = txn.getActions().iterator();
-        synchronized (lock) {
-            while (actionIt.hasNext()) {
-                final TransactionCap.ClientAction.Reader action = actionIt.next();
-                final VarUUId vUUId = new VarUUId(action.getVarId().asByteBuffer());
-                switch (action.which()) {
-                    case WRITE: {
-                        final TransactionCap.ClientAction.Write.Reader write = action.getWrite();
-                        final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs = write.getReferences();
-                        updateFromWrite(txnId, vUUId, write.getValue(), refs, null, false);
-                        break;
-                    }
-                    case READWRITE: {
-                        final TransactionCap.ClientAction.Readwrite.Reader rw = action.getReadwrite();
-                        final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs = rw.getReferences();
-                        updateFromWrite(txnId, vUUId, rw.getValue(), refs, null, false);
-                        break;
+    void unpin(final VarUUId vUUId) {
+        final Stripe stripe = stripe(vUUId);
+        final long stamp = stripe.lock.writeLock();
+        try {
+            final ValueRef vr = stripe.m.get(vUUId);
+            if (vr == null || vr.pins == 0) {
+                throw new IllegalStateException("Attempt to unpin " + vUUId + " which is not pinned");
+            }
+            vr.pins--;
+            if (!vr.isPinned()) {
+                stripe.probation.add(vr);
+                vr.segment = SEGMENT_PROBATION;
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+        evict();
+    }
+
+    // The total weight of the values that can be evicted.
+    long weight() {
+        return probationWeight.get() + protectedWeight.get();
+    }
+
+    void markStale() {
+        epoch++;
+    }
+
+    // Returns the capability we have discovered on vUUId, or null if we know nothing of it.
+    // Usually this takes no lock at all: the lookup is an optimistic read, which is only retried
+    // under the read lock if a writer got in the way.
+    Capability getCapability(final VarUUId vUUId) {
+        final Stripe stripe = stripe(vUUId);
+        long stamp = stripe.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            final ValueRef vr = stripe.m.get(vUUId);
+            final Capability cap = vr == null ? null : vr.cap;
+            if (stripe.lock.validate(stamp)) {
+                return cap;
+            }
+        }
+        stamp = stripe.lock.readLock();
+        try {
+            final ValueRef vr = stripe.m.get(vUUId);
+            return vr == null ? null : vr.cap;
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    boolean hasVersion(final VarUUId vUUId) {
+        final Stripe stripe = stripe(vUUId);
+        final long stamp = stripe.lock.readLock();
+        try {
+            final ValueRef vr = stripe.m.get(vUUId);
+            return vr != null && vr.version != null;
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    // Returns a consistent copy of the entry for vUUId, or null if we hold no version of it. Any
+    // owner in the copy has been retained and must be released by the caller. Readers only
+    // share the stripe's read lock: owners in the cache are only released under the write lock.
+    ValueRef read(final VarUUId vUUId) {
+        return read(vUUId, true);
+    }
+
+    // As read, but without recording an access, so that eviction treats the entry as if it had
+    // not been read. For internal traversals, which must not make entries look popular.
+    ValueRef peek(final VarUUId vUUId) {
+        return read(vUUId, false);
+    }
+
+    private ValueRef read(final VarUUId vUUId, final boolean recordAccess) {
+        final Stripe stripe = stripe(vUUId);
+        final long stamp = stripe.lock.readLock();
+        try {
+            final ValueRef vr = stripe.m.get(vUUId);
+            if (vr == null || vr.version == null) {
+                return null;
+            }
+            if (recordAccess && !vr.accessed) {
+                vr.accessed = true;
+            }
+            return copyOf(vr);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    // Must be called with the entry's stripe's lock held.
+    private static ValueRef copyOf(final ValueRef vr) {
+        final ValueRef copy = new ValueRef();
+        copy.version = vr.version;
+        copy.value = vr.value;
+        copy.references = vr.references;
+        copy.cap = vr.cap;
+        copy.owner = vr.owner;
+        if (copy.owner != null) {
+            copy.owner.retain();
+        }
+        return copy;
+    }
+
+    // Calls action with a copy, as from peek, of every entry which holds a version. The action
+    // must release any owner in each copy it is given. A stripe's copies are taken under its read
+    // lock, but action is only called once the lock has been released, so that a slow action,
+    // such as one doing I/O, never holds up the event loop's updates. If action throws, the
+    // copies it has not been given are released.
+    void forEachVersioned(final BiConsumer<VarUUId, ValueRef> action) {
+        final ArrayList<VarUUId> ids = new ArrayList<>();
+        final ArrayList<ValueRef> copies = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            final long stamp = stripe.lock.readLock();
+            try {
+                stripe.m.forEachEntry((vUUId, vr) -> {
+                    if (vr.version != null) {
+                        ids.add(vUUId);
+                        copies.add(copyOf(vr));
                     }
-                    case CREATE: {
-                        final TransactionCap.ClientAction.Create.Reader create = action.getCreate();
-                        final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs = create.getReferences();
-                        updateFromWrite(txnId, vUUId, create.getValue(), refs, null, true);
-                        break;
+                });
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+            int given = 0;
+            try {
+                while (given < copies.size()) {
+                    final ValueRef copy = copies.get(given);
+                    given++;
+                    action.accept(ids.get(given - 1), copy);
+                }
+            } finally {
+                for (int idx = given; idx < copies.size(); idx++) {
+                    final ReferenceCounted owner = copies.get(idx).owner;
+                    if (owner != null) {
+                        owner.release();
                     }
                 }
+                ids.clear();
+                copies.clear();
             }
         }
     }
 
+    // Adds an entry from an earlier session, unless we already hold a version of vUUId. The server
+    // knows nothing of it, so it is treated as if from before a reconnection: the server may
+    // refresh or contradict it, and any txn which reads a stale version will be given the current
+    // one. Returns true iff the entry was added.
+    boolean restore(final VarUUId vUUId, final TxnId version, final Capability cap, final ByteBuffer value, final RefCap[] references) {
+        final Stripe stripe = stripe(vUUId);
+        final long stamp = stripe.lock.writeLock();
+        try {
+            final ValueRef vr = entry(stripe, vUUId);
+            if (vr.version != null) {
+                return false;
+            }
+            vr.version = version;
+            vr.epoch = epoch - 1;
+            vr.references = references;
+            vr.cap = vr.cap == null ? cap : cap == null ? vr.cap : vr.cap.union(cap);
+            setValue(vr, vUUId, version, value, null);
+            // Never spared by eviction.
+            vr.written = -1;
+            setWeight(stripe, vr);
+            account(stripe, vr, 1);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+        discover(references);
+        evict();
+        return true;
+    }
+
+    // Called from the event loop. Each var is updated under its own stripe's lock, so other
+    // threads may see some of a txn's writes before others; the server rejects any txn that
+    // reads such a mixture.
+    void updateFromTxnCommit(final TransactionCap.ClientTxn.Reader txn, final TxnId txnId, final MessageReaderRefCount reader) {
+        final Iterator<TransactionCap.ClientAction.Reader> actionIt = txn.getActions().iterator();
+        batch++;
+        while (actionIt.hasNext()) {
+            final TransactionCap.ClientAction.Reader action = actionIt.next();
+            final VarUUId vUUId = new VarUUId(action.getVarId());
+            switch (action.which()) {
+                case WRITE: {
+                    final TransactionCap.ClientAction.Write.Reader write = action.getWrite();
+                    final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs = write.getReferences();
+                    updateFromWrite(txnId, vUUId, write.getValue(), refs, reader, false);
+                    break;
+                }
+                case READWRITE: {
+                    final TransactionCap.ClientAction.Readwrite.Reader rw = action.getReadwrite();
+                    final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs = rw.getReferences();
+                    updateFromWrite(txnId, vUUId, rw.getValue(), refs, reader, false);
+                    break;
+                }
+                case CREATE: {
+                    final TransactionCap.ClientAction.Create.Reader create = action.getCreate();
+                    final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs = create.getReferences();
+                    updateFromWrite(txnId, vUUId, create.getValue(), refs, reader, true);
+                    break;
+                }
+            }
+        }
+        evict();
+    }
+
+    // Called from the event loop.
     List<VarUUId> updateFromTxnAbort(final StructList.Reader<TransactionCap.ClientUpdate.Reader> updates, final MessageReaderRefCount reader) {
         final ArrayList<VarUUId> modifiedVars = new ArrayList<>(updates.size());
         final Iterator<TransactionCap.ClientUpdate.Reader> updatesIt = updates.iterator();
-        synchronized (lock) {
-            while (updatesIt.hasNext()) {
-                final TransactionCap.ClientUpdate.Reader update = updatesIt.next();
-                final TxnId txnId = new TxnId(update.getVersion().asByteBuffer());
-                final StructList.Reader<TransactionCap.ClientAction.Reader> actions = update.getActions();
-                actions.forEach((final TransactionCap.ClientAction.Reader action) -> {
-                    final VarUUId vUUId = new VarUUId(action.getVarId().asByteBuffer());
-                    switch (action.which()) {
-                        case DELETE: {
-                            updateFromDelete(vUUId, txnId);
-                            break;
-                        }
-                        case WRITE: {
-                            // We're missing TxnId and TxnId made a write of id (to
-                            // version TxnId).
-                            final TransactionCap.ClientAction.Write.Reader write = action.getWrite();
-                            final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs = write.getReferences();
-                            if (updateFromWrite(txnId, vUUId, write.getValue(), refs, reader, false)) {
+        batch++;
+        while (updatesIt.hasNext()) {
+            final TransactionCap.ClientUpdate.Reader update = updatesIt.next();
+            final TxnId txnId = intern(update.getVersion());
+            final StructList.Reader<TransactionCap.ClientAction.Reader> actions = update.getActions();
+            actions.forEach((final TransactionCap.ClientAction.Reader action) -> {
+                final VarUUId vUUId = new VarUUId(action.getVarId());
+                switch (action.which()) {
+                    case DELETE: {
+                        updateFromDelete(vUUId, txnId);
+                        break;
+                    }
+                    case WRITE: {
+                        // We're missing TxnId and TxnId made a write of id (to
+                        // version TxnId).
+                        final TransactionCap.ClientAction.Write.Reader write = action.getWrite();
+                        final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs = write.getReferences();
+                        switch (updateFromWrite(txnId, vUUId, write.getValue(), refs, reader, false)) {
+                            case WRITE_ADDED:
+                                loads.increment();
+                                break;
+                            case WRITE_RELOADED:
+                                // A txn may have read the value before it was evicted.
+                                modifiedVars.add(vUUId);
+                                loads.increment();
+                                break;
+                            case WRITE_REPLACED:
                                 modifiedVars.add(vUUId);
-                            }
-                            break;
+                                abortUpdates.increment();
+                                break;
                         }
+                        break;
                     }
-                });
-            }
+                }
+            });
         }
+        evict();
         return modifiedVars;
     }
 
+    // Must be called from the event loop.
+    private TxnId intern(final Data.Reader version) {
+        Ids.checkLength(version);
+        final long w0 = Ids.word0(version);
+        final long w1 = Ids.word1(version);
+        final int w2 = Ids.word2(version);
+        final int idx = Ids.hash(w0, w1, w2) & (INTERNED_VERSIONS - 1);
+        TxnId txnId = versions[idx];
+        if (txnId == null || !txnId.matches(version)) {
+            txnId = new TxnId(w0, w1, w2);
+            versions[idx] = txnId;
+        }
+        return txnId;
+    }
+
     private void updateFromDelete(final VarUUId vUUId, final TxnId txnId) {
-        final ValueRef vr = m.get(vUUId);
-        if (vr == null || vr.version == null) {
-            throw new IllegalStateException("Divergence discovered on deletion of " + vUUId + ": server thinks we had it cached, but we don't!");
-        } else if (vr.version.equals(txnId)) {
-            throw new IllegalStateException("Divergence discovered on deletion of " + vUUId + ": server thinks we don't have " + txnId + " but we do!");
-        } else {
-            vr.version = null;
-            vr.value = null;
-            vr.references = null;
-            if (vr.reader != null) {
-                vr.reader.release();
-                vr.reader = null;
+        final Stripe stripe = stripe(vUUId);
+        final long stamp = stripe.lock.writeLock();
+        try {
+            final ValueRef vr = stripe.m.get(vUUId);
+            if (vr == null) {
+                // With a limit, we may have evicted the value and then forgotten the entry.
+                if (limit != Long.MAX_VALUE) {
+                    return;
+                }
+                throw new IllegalStateException("Divergence discovered on deletion of " + vUUId + ": server thinks we had it cached, but we don't!");
+            } else if (vr.version == null) {
+                if (vr.evicted || vr.epoch != epoch) {
+                    vr.evicted = false;
+                    return;
+                }
+                throw new IllegalStateException("Divergence discovered on deletion of " + vUUId + ": server thinks we had it cached, but we don't!");
+            } else if (vr.version.equals(txnId) && vr.epoch == epoch) {
+                throw new IllegalStateException("Divergence discovered on deletion of " + vUUId + ": server thinks we don't have " + txnId + " but we do!");
+            } else {
+                deletes.increment();
+                dropValue(stripe, vr);
             }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
         }
     }
 
-    private boolean updateFromWrite(final TxnId txnId, final VarUUId vUUId, final Data.Reader value, final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs, final MessageReaderRefCount reader, final boolean created) {
-        ValueRef vr = m.get(vUUId);
-        final boolean updated = vr != null && vr.version != null;
-        final RefCap[] references = new RefCap[refs.size()];
+    // Must be called with the stripe's write lock held. A new entry holds no value, and starts on
+    // probation.
+    private static ValueRef entry(final Stripe stripe, final VarUUId vUUId) {
+        ValueRef vr = stripe.m.get(vUUId);
         if (vr == null) {
             vr = new ValueRef();
-            m.put(vUUId, vr);
-        } else if (vr.version != null && vr.version.equals(txnId)) {
-            throw new IllegalStateException("Divergence discovered on update of " + vUUId + ": server thinks we don't have " + txnId + " but we do!");
+            vr.vUUId = vUUId;
+            vr.weight = ENTRY_WEIGHT;
+            stripe.m.put(vUUId, vr);
+            stripe.probation.add(vr);
+            vr.segment = SEGMENT_PROBATION;
+        }
+        return vr;
+    }
+
+    // Must be called with the stripe's write lock held. Leaves the entry recording only its
+    // capability, back on probation unless it is pinned.
+    private void dropValue(final Stripe stripe, final ValueRef vr) {
+        account(stripe, vr, -1);
+        unlink(stripe, vr);
+        vr.version = null;
+        vr.value = null;
+        vr.references = null;
+        setOwner(vr, null);
+        vr.accessed = false;
+        vr.weight = ENTRY_WEIGHT;
+        if (!vr.isPinned()) {
+            stripe.probation.add(vr);
+            vr.segment = SEGMENT_PROBATION;
+        }
+    }
+
+    // Must be called with the stripe's write lock held.
+    private static void unlink(final Stripe stripe, final ValueRef vr) {
+        if (vr.segment == SEGMENT_PROBATION) {
+            stripe.probation.remove(vr);
+        } else if (vr.segment == SEGMENT_PROTECTED) {
+            stripe.protectedSegment.remove(vr);
+        }
+        vr.segment = SEGMENT_NONE;
+    }
+
+    // Evicts values until we are within budget, or until no stripe has anything left that may be
+    // evicted. The stripes take turns, so that between them they approximate a single LRU order.
+    private void evict() {
+        if (limit == Long.MAX_VALUE) {
+            return;
+        }
+        int fruitless = 0;
+        while (weight() > limit && fruitless < stripes.length) {
+            final Stripe stripe = stripes[nextVictim.getAndIncrement() & stripeMask];
+            final long stamp = stripe.lock.writeLock();
+            try {
+                fruitless = evictOne(stripe) ? 0 : fruitless + 1;
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    // Must be called with the stripe's write lock held. Drops the stripe's least recently used
+    // value, unless it has been read since it was last considered: then it is promoted from
+    // probation, or moved to the back of the protected segment, instead, and the stripe has had
+    // its turn. The entries written by the current batch are spared, so a message may take us over
+    // budget temporarily, but a value that has just been loaded is still there when the outcome
+    // that loaded it takes its copy; see Connection.loadVar. An entry without a value is removed,
+    // forgetting the capability it recorded: GoshawkObjs are then given the capability of the
+    // reference they are reached through. Returns false if the stripe has nothing which may be
+    // evicted.
+    private boolean evictOne(final Stripe stripe) {
+        final Segment probation = stripe.probation;
+        final Segment protectedSegment = stripe.protectedSegment;
+        ValueRef vr = probation.lru();
+        if (vr != null && vr.accessed) {
+            vr.accessed = false;
+            probation.remove(vr);
+            protectedSegment.add(vr);
+            vr.segment = SEGMENT_PROTECTED;
+            demote(stripe);
+            return true;
+        }
+        if (vr == null || isSpared(vr)) {
+            vr = protectedSegment.lru();
+            if (vr != null && vr.accessed) {
+                vr.accessed = false;
+                protectedSegment.remove(vr);
+                protectedSegment.add(vr);
+                return true;
+            }
+            if (vr == null || isSpared(vr)) {
+                return false;
+            }
+        }
+        if (vr.version == null) {
+            unlink(stripe, vr);
+            stripe.m.remove(vr.vUUId);
+            return true;
         }
-        // Must use the new array because there could be txns in
-        // progress that still have pointers to the old array.
-        vr.references = references;
-        vr.version = txnId;
-        vr.value = value.asByteBuffer().asReadOnlyBuffer().slice();
-        if (reader != null) {
-            reader.retain();
+        evictions.increment();
+        dropValue(stripe, vr);
+        // The server still believes we have the value, so it may yet send us updates to it.
+        vr.evicted = true;
+        return true;
+    }
+
+    private boolean isSpared(final ValueRef vr) {
+        return vr.version != null && vr.written == batch;
+    }
+
+    // Must be called with the stripe's write lock held. Moves entries from the stripe's protected
+    // segment to its probation until the protected segments are within their share of the budget,
+    // or this stripe's has only its newest entry left.
+    private void demote(final Stripe stripe) {
+        final Segment protectedSegment = stripe.protectedSegment;
+        while (protectedWeight.get() > protectedLimit) {
+            final ValueRef vr = protectedSegment.lru();
+            if (vr == null || vr == protectedSegment.head.prev) {
+                return;
+            }
+            protectedSegment.remove(vr);
+            if (vr.accessed) {
+                vr.accessed = false;
+                protectedSegment.add(vr);
+            } else {
+                stripe.probation.add(vr);
+                vr.segment = SEGMENT_PROBATION;
+            }
         }
-        if (vr.reader != null) {
-            vr.reader.release();
+    }
+
+    // Must be called with the entry's stripe's write lock held. Swaps the entry's owner,
+    // retaining the new one and keeping track of which network buffers are pinned.
+    private void setOwner(final ValueRef vr, final ReferenceCounted owner) {
+        if (owner != null) {
+            owner.retain();
+            if (owner instanceof MessageReaderRefCount) {
+                pin(((MessageReaderRefCount) owner).backingBuffer());
+            }
         }
-        vr.reader = reader;
-        if (created) {
-            vr.cap = Capability.ReadWrite;
+        if (vr.owner != null) {
+            if (vr.owner instanceof MessageReaderRefCount) {
+                unpin(((MessageReaderRefCount) vr.owner).backingBuffer());
+            }
+            vr.owner.release();
         }
+        vr.owner = owner;
+    }
+
+    private void pin(final ByteBuf backing) {
+        synchronized (pinned) {
+            if (pinned.merge(backing, 1, Integer::sum) == 1) {
+                pinnedBytes += backing.capacity();
+            }
+        }
+    }
+
+    private void unpin(final ByteBuf backing) {
+        synchronized (pinned) {
+            if (pinned.merge(backing, -1, Integer::sum) == 0) {
+                pinned.remove(backing);
+                pinnedBytes -= backing.capacity();
+            }
+        }
+    }
+
+    private int updateFromWrite(final TxnId txnId, final VarUUId vUUId, final Data.Reader value, final StructList.Reader<TransactionCap.ClientVarIdPos.Reader> refs, final MessageReaderRefCount reader, final boolean created) {
+        // Parse the references before taking any lock. Must use a new array because there could
+        // be txns in progress that still have pointers to the old array.
+        final RefCap[] references = new RefCap[refs.size()];
         final Iterator<TransactionCap.ClientVarIdPos.Reader> refsIt = refs.iterator();
         int idx = 0;
         while (refsIt.hasNext()) {
             final TransactionCap.ClientVarIdPos.Reader ref = refsIt.next();
-            final RefCap rc = new RefCap(new VarUUId(ref.getVarId().asByteBuffer()), ref.getCapability());
-            references[idx] = rc;
+            references[idx] = new RefCap(new VarUUId(ref.getVarId()), ref.getCapability());
             idx++;
-            vr = m.get(rc.vUUId);
-            if (vr == null) {
-                vr = new ValueRef();
-                vr.cap = rc.cap;
-                m.put(rc.vUUId, vr);
-            } else if (vr.cap == null) {
-                vr.cap = rc.cap;
+        }
+        final int result;
+        final Stripe stripe = stripe(vUUId);
+        final long stamp = stripe.lock.writeLock();
+        try {
+            final ValueRef existing = stripe.m.get(vUUId);
+            if (existing == null) {
+                // With a limit, entries are forgotten once evicted, so we can't tell a value we
+                // never had from one that a txn may have read before it was evicted.
+                result = limit == Long.MAX_VALUE ? WRITE_ADDED : WRITE_RELOADED;
+            } else if (existing.version == null) {
+                result = existing.evicted ? WRITE_RELOADED : WRITE_ADDED;
+            } else {
+                result = WRITE_REPLACED;
+            }
+            final ValueRef vr = entry(stripe, vUUId);
+            if (vr.version != null && vr.version.equals(txnId)) {
+                if (vr.epoch == epoch) {
+                    throw new IllegalStateException("Divergence discovered on update of " + vUUId + ": server thinks we don't have " + txnId + " but we do!");
+                }
+                // The server is refreshing an entry from before a reconnection: we already have it.
+                vr.epoch = epoch;
+                return WRITE_UNCHANGED;
+            }
+            account(stripe, vr, -1);
+            vr.references = references;
+            vr.version = txnId;
+            vr.epoch = epoch;
+            setValue(vr, vUUId, txnId, value.asByteBuffer(), reader);
+            if (created) {
+                vr.cap = Capability.ReadWrite;
+            }
+            vr.written = batch;
+            setWeight(stripe, vr);
+            account(stripe, vr, 1);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+        discover(references);
+        return result;
+    }
+
+    // Must be called with the stripe's write lock held. Sets the entry's value, taking it from
+    // reader's message if that is worth keeping alive, and copying it otherwise.
+    private void setValue(final ValueRef vr, final VarUUId vUUId, final TxnId txnId, final ByteBuffer valueBuf, final MessageReaderRefCount reader) {
+        if (store != null) {
+            final ValueStore.Value shared = store.share(vUUId, txnId, valueBuf);
+            vr.value = shared.value;
+            setOwner(vr, shared);
+            // The entry has retained shared, and now owns our reference to it.
+            shared.release();
+        } else if (arena != null) {
+            final ByteBuf slab = arena.copy(valueBuf);
+            vr.value = slab.nioBuffer(0, slab.writerIndex()).asReadOnlyBuffer();
+            setOwner(vr, slab);
+            // The entry has retained slab, and now owns it.
+            slab.release();
+        } else if (reader != null && valueBuf.remaining() * COPY_OUT_RATIO >= reader.backingBuffer().capacity()) {
+            vr.value = valueBuf.asReadOnlyBuffer().slice();
+            setOwner(vr, reader);
+        } else {
+            final ByteBuffer copy = ByteBuffer.allocate(valueBuf.remaining());
+            copy.put(valueBuf).flip();
+            vr.value = copy.asReadOnlyBuffer();
+            setOwner(vr, null);
+        }
+    }
+
+    // Must be called with the stripe's write lock held, with sign -1 before an entry's value is
+    // replaced or dropped, and +1 after it is set.
+    private static void account(final Stripe stripe, final ValueRef vr, final int sign) {
+        if (vr.version != null) {
+            stripe.entries += sign;
+            stripe.valueBytes += sign * (long) vr.value.remaining();
+        }
+    }
+
+    // Must be called with the stripe's write lock held. Accounts for the entry's new value, and
+    // puts it back on its segment.
+    private void setWeight(final Stripe stripe, final ValueRef vr) {
+        vr.evicted = false;
+        final int segment = vr.segment;
+        unlink(stripe, vr);
+        vr.weight = ENTRY_WEIGHT + vr.value.remaining() + REFERENCE_WEIGHT * (long) vr.references.length;
+        if (!vr.isPinned()) {
+            if (segment == SEGMENT_PROTECTED) {
+                stripe.protectedSegment.add(vr);
+                vr.segment = SEGMENT_PROTECTED;
             } else {
-                vr.cap = vr.cap.union(rc.cap);
+                stripe.probation.add(vr);
+                vr.segment = SEGMENT_PROBATION;
+            }
+        }
+    }
+
+    // Records the capabilities discovered through references. Must be called without any lock.
+    private void discover(final RefCap[] references) {
+        for (RefCap rc : references) {
+            final Stripe refStripe = stripe(rc.vUUId);
+            final long refStamp = refStripe.lock.writeLock();
+            try {
+                final ValueRef vr = entry(refStripe, rc.vUUId);
+                vr.cap = vr.cap == null ? rc.cap : vr.cap.union(rc.cap);
+            } finally {
+                refStripe.lock.unlockWrite(refStamp);
             }
         }
-        return updated;
     }
 
 }
@@ -0,0 +1,267 @@
+package io.goshawkdb.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static io.goshawkdb.client.ConnectionFactory.KEY_LEN;
+
+// Saves the versioned entries of a connection's cache to a file, and loads them back into the
+// cache of a later connection to the same cluster. Files are read through memory mapped windows,
+// so that a large snapshot is neither read in one go nor mapped all at once.
+//
+// The format is big-endian throughout: a header of the magic, the format version, the number of
+// roots and their ids, and the number of entries; then for each entry its id, version,
+// capability, the length of its value and the value, and the number of its references, each as
+// an id and a capability. Capabilities are their ordinal, or -1 for none.
+final class CacheSnapshot {
+
+    private static final int MAGIC = 0x47444273;
+    private static final int FORMAT = 1;
+    private static final int WINDOW = 64 * 1024 * 1024;
+    private static final int WRITE_BUFFER = 64 * 1024;
+    private static final Capability[] CAPABILITIES = Capability.values();
+
+    private CacheSnapshot() {
+    }
+
+    // Writes to a temporary file beside path, which then replaces path, so that path is never
+    // left holding half a snapshot. Returns the number of entries written.
+    static int save(final Cache cache, final Collection<Cache.RefCap> roots, final Path path) throws IOException {
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        final int count;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final Writer w = new Writer(ch);
+            w.putInt(MAGIC);
+            w.putInt(FORMAT);
+            w.putInt(roots.size());
+            for (Cache.RefCap rc : roots) {
+                w.putId(rc.vUUId.word0, rc.vUUId.word1, rc.vUUId.word2);
+            }
+            final long countPos = w.position();
+            w.putInt(0);
+            final int[] entries = {0};
+            final IOException[] failure = {null};
+            cache.forEachVersioned((vUUId, vr) -> {
+                try {
+                    if (failure[0] == null) {
+                        w.putEntry(vUUId, vr);
+                        entries[0]++;
+                    }
+                } catch (final IOException e) {
+                    failure[0] = e;
+                } finally {
+                    if (vr.owner != null) {
+                        vr.owner.release();
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            w.flush();
+            count = entries[0];
+            final ByteBuffer countBuf = ByteBuffer.allocate(4).putInt(0, count);
+            while (countBuf.hasRemaining()) {
+                ch.write(countBuf, countPos + countBuf.position());
+            }
+            ch.force(true);
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return count;
+    }
+
+    // Returns the number of entries added to the cache. Entries for objects the cache already
+    // holds a version of are skipped.
+    static int load(final Cache cache, final Collection<Cache.RefCap> roots, final Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            final Reader r = new Reader(ch, path);
+            if (r.getInt() != MAGIC) {
+                throw new IOException(path + " is not a cache snapshot");
+            }
+            final int format = r.getInt();
+            if (format != FORMAT) {
+                throw new IOException(path + " has unsupported snapshot format " + format);
+            }
+            // A snapshot of a different cluster, or taken with different credentials, must not be
+            // loaded: it may hold objects we cannot now read.
+            final int rootCount = r.getCount();
+            final Set<VarUUId> snapshotRoots = new HashSet<>();
+            for (int idx = 0; idx < rootCount; idx++) {
+                snapshotRoots.add(r.getVarUUId());
+            }
+            final Set<VarUUId> currentRoots = new HashSet<>();
+            roots.forEach(rc -> currentRoots.add(rc.vUUId));
+            if (!snapshotRoots.equals(currentRoots)) {
+                throw new IllegalStateException("Cache snapshot " + path + " was taken with different roots");
+            }
+            final int entryCount = r.getCount();
+            // Many entries share versions.
+            final Map<TxnId, TxnId> versions = new HashMap<>();
+            int restored = 0;
+            for (int idx = 0; idx < entryCount; idx++) {
+                final VarUUId vUUId = r.getVarUUId();
+                final TxnId read = r.getTxnId();
+                final TxnId version = versions.computeIfAbsent(read, v -> v);
+                final Capability cap = r.getCapability();
+                final ByteBuffer value = r.getBytes(r.getCount());
+                final Cache.RefCap[] references = new Cache.RefCap[r.getCount()];
+                for (int ref = 0; ref < references.length; ref++) {
+                    final VarUUId refId = r.getVarUUId();
+                    references[ref] = new Cache.RefCap(refId, r.getCapability());
+                }
+                if (cache.restore(vUUId, version, cap, value, references)) {
+                    restored++;
+                }
+            }
+            return restored;
+        }
+    }
+
+    private static final class Writer {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER);
+        private long flushed = 0;
+
+        Writer(final FileChannel ch) {
+            this.ch = ch;
+        }
+
+        long position() {
+            return flushed + buf.position();
+        }
+
+        void putEntry(final VarUUId vUUId, final Cache.ValueRef vr) throws IOException {
+            putId(vUUId.word0, vUUId.word1, vUUId.word2);
+            putId(vr.version.word0, vr.version.word1, vr.version.word2);
+            putCapability(vr.cap);
+            final ByteBuffer value = vr.value.duplicate();
+            putInt(value.remaining());
+            if (value.remaining() > buf.remaining()) {
+                flush();
+                if (value.remaining() > buf.remaining()) {
+                    while (value.hasRemaining()) {
+                        flushed += ch.write(value);
+                    }
+                }
+            }
+            buf.put(value);
+            putInt(vr.references.length);
+            for (Cache.RefCap rc : vr.references) {
+                putId(rc.vUUId.word0, rc.vUUId.word1, rc.vUUId.word2);
+                putCapability(rc.cap);
+            }
+        }
+
+        void putId(final long w0, final long w1, final int w2) throws IOException {
+            ensure(KEY_LEN);
+            buf.putLong(w0).putLong(w1).putInt(w2);
+        }
+
+        void putInt(final int i) throws IOException {
+            ensure(4);
+            buf.putInt(i);
+        }
+
+        private void putCapability(final Capability cap) throws IOException {
+            ensure(1);
+            buf.put(cap == null ? -1 : (byte) cap.ordinal());
+        }
+
+        private void ensure(final int len) throws IOException {
+            if (buf.remaining() < len) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                flushed += ch.write(buf);
+            }
+            buf.clear();
+        }
+    }
+
+    private static final class Reader {
+        private final FileChannel ch;
+        private final Path path;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+
+        Reader(final FileChannel ch, final Path path) throws IOException {
+            this.ch = ch;
+            this.path = path;
+            size = ch.size();
+        }
+
+        int getInt() throws IOException {
+            return ensure(4).getInt();
+        }
+
+        int getCount() throws IOException {
+            final int count = getInt();
+            if (count < 0) {
+                throw new IOException(path + " is corrupt");
+            }
+            return count;
+        }
+
+        VarUUId getVarUUId() throws IOException {
+            final ByteBuffer b = ensure(KEY_LEN);
+            return new VarUUId(b.getLong(), b.getLong(), b.getInt());
+        }
+
+        TxnId getTxnId() throws IOException {
+            final ByteBuffer b = ensure(KEY_LEN);
+            return new TxnId(b.getLong(), b.getLong(), b.getInt());
+        }
+
+        Capability getCapability() throws IOException {
+            final byte ordinal = ensure(1).get();
+            if (ordinal == -1) {
+                return null;
+            } else if (ordinal < 0 || ordinal >= CAPABILITIES.length) {
+                throw new IOException(path + " is corrupt");
+            }
+            return CAPABILITIES[ordinal];
+        }
+
+        // The result is only valid until the next call: the cache copies it.
+        ByteBuffer getBytes(final int len) throws IOException {
+            final ByteBuffer b = ensure(len);
+            final ByteBuffer bytes = b.slice();
+            bytes.limit(len);
+            b.position(b.position() + len);
+            return bytes;
+        }
+
+        // Returns the window, positioned at the next len bytes, mapping a new one if need be.
+        private ByteBuffer ensure(final int len) throws IOException {
+            if (window == null || window.remaining() < len) {
+                final long pos = window == null ? 0 : windowStart + window.position();
+                final long mapLen = Math.min(Math.max(WINDOW, len), size - pos);
+                if (mapLen < len) {
+                    throw new IOException(path + " is truncated");
+                }
+                window = ch.map(FileChannel.MapMode.READ_ONLY, pos, mapLen);
+                windowStart = pos;
+            }
+            return window;
+        }
+    }
+}
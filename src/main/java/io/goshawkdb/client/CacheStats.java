@@ -0,0 +1,84 @@
+package io.goshawkdb.client;
+
+/**
+ * A snapshot of the statistics of a {@link Connection}'s object cache. The counts are totals since
+ * the connection was created. Obtained from {@link Connection#getCacheStats()}.
+ */
+public class CacheStats {
+
+    /**
+     * The number of object reads in transactions that found the object's value in the cache.
+     */
+    public final long hits;
+    /**
+     * The number of object reads in transactions that had to load the object from the server. A
+     * read which is restarted to wait for the load is not counted again as a hit.
+     */
+    public final long misses;
+    /**
+     * The number of object values received from the server which were not cached, including those
+     * reloaded after being evicted.
+     */
+    public final long loads;
+    /**
+     * The number of cached object values which were replaced with newer versions from the server
+     * when transactions aborted.
+     */
+    public final long updates;
+    /**
+     * The number of cached object values which the server told us to drop.
+     */
+    public final long deletes;
+    /**
+     * The number of object values dropped to keep the cache within its limit.
+     */
+    public final long evictions;
+    /**
+     * The number of objects whose values are currently cached.
+     */
+    public final long entries;
+    /**
+     * The total size in bytes of the currently cached values.
+     */
+    public final long valueBytes;
+    /**
+     * The total weight of the values which count towards the cache's limit, including that of the
+     * entries for objects which are known of but not cached. Values of pinned objects and roots do
+     * not count.
+     */
+    public final long weight;
+    /**
+     * The number of bytes of network buffers currently kept alive by cached values.
+     */
+    public final long pinnedBytes;
+
+    CacheStats(final long hits, final long misses, final long loads, final long updates, final long deletes, final long evictions,
+               final long entries, final long valueBytes, final long weight, final long pinnedBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.loads = loads;
+        this.updates = updates;
+        this.deletes = deletes;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.valueBytes = valueBytes;
+        this.weight = weight;
+        this.pinnedBytes = pinnedBytes;
+    }
+
+    /**
+     * Returns the proportion of reads which found the object's value in the cache, or 0 if there
+     * have been no reads.
+     */
+    public double hitRate() {
+        final long reads = hits + misses;
+        return reads == 0 ? 0 : (double) hits / reads;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses + ", loads=" + loads + ", updates=" + updates +
+                ", deletes=" + deletes + ", evictions=" + evictions + ", entries=" + entries +
+                ", valueBytes=" + valueBytes + ", weight=" + weight + ", pinnedBytes=" + pinnedBytes + "}";
+    }
+}
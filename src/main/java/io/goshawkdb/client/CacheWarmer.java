@@ -0,0 +1,138 @@
+package io.goshawkdb.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
+import static io.goshawkdb.client.ConnectionFactory.VERSION_ZERO;
+
+// Loads a subgraph of objects into a connection's cache, breadth first. Each level of the graph is
+// loaded with txns of many reads at VERSION_ZERO, which the server aborts, sending us the current
+// version of every object read, exactly as for a single Connection.loadVar. Several such txns are
+// kept in flight at once.
+final class CacheWarmer {
+
+    // The number of reads per txn, and the number of txns in flight.
+    static final int BATCH_SIZE = 512;
+    static final int MAX_IN_FLIGHT = 8;
+
+    private final Connection conn;
+    private final Cache cache;
+    private final Predicate<ByteBuffer> follow;
+    private final VarUUIdMap<VarUUId> seen = new VarUUIdMap<>();
+    // Each completes with the number of its txn's reads that loaded an object.
+    private final ArrayDeque<CompletableFuture<Integer>> inFlight = new ArrayDeque<>();
+    private int loaded = 0;
+
+    CacheWarmer(final Connection conn, final Cache cache, final Predicate<ByteBuffer> follow) {
+        this.conn = conn;
+        this.cache = cache;
+        this.follow = follow;
+    }
+
+    // Returns the number of objects loaded from the server.
+    int warm(final Collection<VarUUId> roots, final int maxDepth) throws InterruptedException {
+        List<VarUUId> level = new ArrayList<>(roots.size());
+        for (VarUUId vUUId : roots) {
+            visit(vUUId, null, level);
+        }
+        for (int depth = 0; !level.isEmpty(); depth++) {
+            load(level);
+            if (depth == maxDepth) {
+                break;
+            }
+            level = nextLevel(level);
+        }
+        return loaded;
+    }
+
+    // The cache may have forgotten what it discovered of an object, so fall back to known, the
+    // capability of the reference it was reached through.
+    private void visit(final VarUUId vUUId, final Capability known, final List<VarUUId> level) {
+        final Capability discovered = cache.getCapability(vUUId);
+        final Capability cap = discovered == null ? known : discovered;
+        if (cap != null && cap.canRead() && seen.putIfAbsent(vUUId, vUUId) == null) {
+            level.add(vUUId);
+        }
+    }
+
+    private void load(final List<VarUUId> level) throws InterruptedException {
+        final ArrayList<VarUUId> batch = new ArrayList<>(Math.min(BATCH_SIZE, level.size()));
+        for (VarUUId vUUId : level) {
+            if (!cache.hasVersion(vUUId)) {
+                batch.add(vUUId);
+                if (batch.size() == BATCH_SIZE) {
+                    submit(batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            submit(batch);
+        }
+        while (!inFlight.isEmpty()) {
+            await(inFlight.poll());
+        }
+    }
+
+    private void submit(final List<VarUUId> batch) throws InterruptedException {
+        if (inFlight.size() == MAX_IN_FLIGHT) {
+            await(inFlight.poll());
+        }
+        final int size = ClientTxnEncoder.baseSize(batch.size()) + batch.size() * ClientTxnEncoder.readSize();
+        final ClientTxnEncoder encoder = new ClientTxnEncoder(false, batch.size(), size);
+        for (VarUUId vUUId : batch) {
+            encoder.read(vUUId, VERSION_ZERO);
+        }
+        final List<VarUUId> requested = new ArrayList<>(batch);
+        // Counted as the outcome is applied, before later messages can evict what it loaded.
+        // Objects we cannot read, and reads which brought no update, are not counted.
+        inFlight.add(conn.submitTransactionAsync(encoder.finish()).thenApply(result -> {
+            int count = 0;
+            for (VarUUId vUUId : requested) {
+                if (cache.hasVersion(vUUId)) {
+                    count++;
+                }
+            }
+            return count;
+        }));
+    }
+
+    private void await(final CompletableFuture<Integer> future) throws InterruptedException {
+        try {
+            loaded += future.get();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    private List<VarUUId> nextLevel(final List<VarUUId> level) {
+        final List<VarUUId> next = new ArrayList<>();
+        for (VarUUId vUUId : level) {
+            // Warming is a scan: it must not promote what it loads over what is actually used.
+            final Cache.ValueRef vr = cache.peek(vUUId);
+            if (vr == null) {
+                // Evicted already, or never written.
+                continue;
+            }
+            try {
+                if (follow == null || follow.test(conn.valueCodecs.decode(vr.value).duplicate())) {
+                    for (Cache.RefCap rc : vr.references) {
+                        visit(rc.vUUId, rc.cap, next);
+                    }
+                }
+            } finally {
+                if (vr.owner != null) {
+                    vr.owner.release();
+                }
+            }
+        }
+        return next;
+    }
+}
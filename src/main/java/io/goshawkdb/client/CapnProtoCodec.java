@@ -7,17 +7,33 @@ import org.capnproto.ReaderOptions;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.List;
 
+import io.goshawkdb.client.capnp.ConnectionCap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageCodec;
 
 final class CapnProtoCodec extends ByteToMessageCodec<MessageBuilder> {
     private static final int MAX_SEGMENT_NUMBER = 1024;
-    private static final int MAX_TOTAL_SIZE = 1024 * 1024 * 1024;
+    static final int MAX_TOTAL_SIZE = 1024 * 1024 * 1024;
+    // Frames at least this big which have not fully arrived are assembled in a buffer of exactly
+    // the right size, rather than by the cumulator repeatedly growing its buffer.
+    static final int LARGE_FRAME_SIZE = 64 * 1024;
+    private static final int MAX_CACHED_SEGMENT_ARRAY = 8;
+    private static final int HEARTBEAT = ConnectionCap.ClientMessage.Which.HEARTBEAT.ordinal();
 
     private final Connection conn;
+    // The large frame currently being assembled, and its segment sizes.
+    private ByteBuf pendingFrame;
+    private int[] pendingSegSizes;
+    // Scratch space for decoding, reused across frames: decoding only happens on the event loop,
+    // and MessageReader copies the segments out of the array it's given.
+    private int[] segSizes = new int[1];
+    private final ByteBuffer[][] segmentArrays = new ByteBuffer[MAX_CACHED_SEGMENT_ARRAY + 1][];
+    // Once the connection is running, heartbeats are dropped in decode without being parsed.
+    private boolean running = false;
 
     CapnProtoCodec(final Connection connection) {
         conn = connection;
@@ -25,13 +41,39 @@ final class CapnProtoCodec extends ByteToMessageCodec<MessageBuilder> {
 
     @Override
     public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        releasePendingFrame();
         conn.disconnected();
         super.channelInactive(ctx);
     }
 
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+        releasePendingFrame();
+        super.handlerRemoved(ctx);
+    }
+
+    void startRunning() {
+        running = true;
+    }
+
+    private void releasePendingFrame() {
+        if (pendingFrame != null) {
+            pendingFrame.release();
+            pendingFrame = null;
+            pendingSegSizes = null;
+        }
+    }
+
     @Override
     protected void encode(final ChannelHandlerContext ctx, final MessageBuilder msg, final ByteBuf out) throws Exception {
         final ByteBuffer[] segments = msg.getSegmentsForOutput();
+        writeHeader(segments, out);
+        for (ByteBuffer seg : segments) {
+            out.writeBytes(seg);
+        }
+    }
+
+    private static void writeHeader(final ByteBuffer[] segments, final ByteBuf out) {
         out.writeIntLE(segments.length - 1);
 
         for (ByteBuffer seg : segments) {
@@ -44,14 +86,22 @@ final class CapnProtoCodec extends ByteToMessageCodec<MessageBuilder> {
         if (segments.length % 2 == 0) {
             out.writeIntLE(0);
         }
-
-        for (ByteBuffer seg : segments) {
-            out.writeBytes(seg);
-        }
     }
 
     @Override
     protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
+        if (pendingFrame != null) {
+            pendingFrame.writeBytes(in, Math.min(in.readableBytes(), pendingFrame.writableBytes()));
+            if (!pendingFrame.isWritable()) {
+                final ByteBuf frame = pendingFrame;
+                out.add(newReader(frame, pendingSegSizes, pendingSegSizes.length));
+                pendingFrame = null;
+                pendingSegSizes = null;
+                // The reader has retained the frame.
+                frame.release();
+            }
+            return;
+        }
         int available = in.readableBytes();
         if (available < 4) {
             return;
@@ -69,7 +119,9 @@ final class CapnProtoCodec extends ByteToMessageCodec<MessageBuilder> {
             in.resetReaderIndex();
             return;
         }
-        final int[] segSizes = new int[segCount];
+        if (segSizes.length < segCount) {
+            segSizes = new int[segCount];
+        }
         available -= headerSize;
         int total = 0;
         for (int idx = 0; idx < segCount; idx++) {
@@ -93,19 +145,69 @@ final class CapnProtoCodec extends ByteToMessageCodec<MessageBuilder> {
             available -= 4;
         }
         if (available < total) {
-            in.resetReaderIndex();
+            if (total >= LARGE_FRAME_SIZE) {
+                // We know the frame's size now, so collect it in place. Consuming what we've got
+                // lets the cumulator stay small whilst the rest arrives.
+                pendingFrame = ctx.alloc().buffer(total, total);
+                pendingSegSizes = Arrays.copyOf(segSizes, segCount);
+                pendingFrame.writeBytes(in, available);
+            } else {
+                in.resetReaderIndex();
+            }
             return;
         }
-        int readerIndex = in.readerIndex();
-        final ByteBuffer[] segmentSlices = new ByteBuffer[segCount];
-        for (int idx = 0; idx < segSizes.length; idx++) {
+        if (running && segCount == 1 && isHeartbeat(in, in.readerIndex(), total)) {
+            // Reading the bytes has already reset the IdleStateHandler, which is all heartbeats
+            // are for.
+            in.skipBytes(total);
+            return;
+        }
+        // Slice out just this message so the reader's content is the frame, not the cumulation.
+        final ByteBuf frame = in.slice(in.readerIndex(), total);
+        in.skipBytes(total);
+        out.add(newReader(frame, segSizes, segCount));
+    }
+
+    // Tests whether the single segment message at start is a ClientMessage heartbeat, by following
+    // the root struct pointer to the union's discriminant.
+    private static boolean isHeartbeat(final ByteBuf in, final int start, final int size) {
+        if (size < 8) {
+            return false;
+        }
+        final long pointer = in.getLongLE(start);
+        if ((pointer & 3) != 0) {
+            return false;
+        }
+        final int dataWords = (int) (pointer >>> 32) & 0xffff;
+        if (dataWords == 0) {
+            // With no data section, the discriminant takes its default of 0.
+            return HEARTBEAT == 0;
+        }
+        final long discriminant = start + 8 + 8L * (((int) pointer) >> 2);
+        if (discriminant < start || discriminant + 2 > start + size) {
+            return false;
+        }
+        return in.getShortLE((int) discriminant) == HEARTBEAT;
+    }
+
+    private MessageReaderRefCount newReader(final ByteBuf frame, final int[] segSizes, final int segCount) {
+        int readerIndex = 0;
+        ByteBuffer[] segmentSlices = segCount <= MAX_CACHED_SEGMENT_ARRAY ? segmentArrays[segCount] : null;
+        if (segmentSlices == null) {
+            segmentSlices = new ByteBuffer[segCount];
+            if (segCount <= MAX_CACHED_SEGMENT_ARRAY) {
+                segmentArrays[segCount] = segmentSlices;
+            }
+        }
+        for (int idx = 0; idx < segCount; idx++) {
             final int segSize = segSizes[idx];
-            final ByteBuffer buf = in.nioBuffer(readerIndex, segSize);
+            final ByteBuffer buf = frame.nioBuffer(readerIndex, segSize);
             buf.order(ByteOrder.LITTLE_ENDIAN);
             segmentSlices[idx] = buf;
             readerIndex += segSize;
         }
-        in.readerIndex(readerIndex);
-        out.add(new MessageReaderRefCount(in, new MessageReader(segmentSlices, ReaderOptions.DEFAULT_READER_OPTIONS)));
+        final MessageReader reader = new MessageReader(segmentSlices, ReaderOptions.DEFAULT_READER_OPTIONS);
+        Arrays.fill(segmentSlices, null);
+        return new MessageReaderRefCount(frame, reader);
     }
 }
@@ -0,0 +1,234 @@
+package io.goshawkdb.client;
+
+import org.capnproto.MessageReader;
+import org.capnproto.ReaderOptions;
+import org.capnproto.StructSize;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import io.goshawkdb.client.capnp.CapabilitiesCap;
+import io.goshawkdb.client.capnp.ConnectionCap;
+import io.goshawkdb.client.capnp.TransactionCap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import static io.goshawkdb.client.ConnectionFactory.KEY_LEN;
+
+// Encodes a ClientMessage carrying a ClientTxnSubmission straight into a pooled buffer, in the
+// Cap'n Proto wire format and already framed for the codec, without going through a MessageBuilder.
+// The message is a single segment; structs and lists are appended in one pass, and pointers to them
+// are patched into the slots reserved for them. The txn id is left blank at a fixed position so
+// that the connection can fill it in when it submits the txn.
+//
+// The result is a MessageReaderRefCount over the frame, which the connection writes to the network
+// and later reads back to update the cache on commit.
+final class ClientTxnEncoder {
+
+    // Pointer element sizes and kinds, from the Cap'n Proto encoding spec.
+    private static final int LIST_POINTER = 1;
+    private static final int ELEMENT_SIZE_BYTE = 2;
+    private static final int ELEMENT_SIZE_INLINE_COMPOSITE = 7;
+
+    private static final int WORD = 8;
+    // segment count - 1, and the size of the one segment.
+    private static final int FRAME_HEADER = 8;
+
+    // Layout of the start of the segment. The root pointer is followed by the ClientMessage, the
+    // ClientTxn and then the txn id.
+    private static final int ROOT_POINTER = FRAME_HEADER;
+    private static final int CLIENT_MESSAGE = ROOT_POINTER + WORD;
+    private static final int CLIENT_TXN = CLIENT_MESSAGE + WORD * (ConnectionCap.ClientMessage.STRUCT_SIZE.data + ConnectionCap.ClientMessage.STRUCT_SIZE.pointers);
+    private static final int CLIENT_TXN_POINTERS = CLIENT_TXN + WORD * TransactionCap.ClientTxn.STRUCT_SIZE.data;
+    static final int TXN_ID = CLIENT_TXN_POINTERS + WORD * TransactionCap.ClientTxn.STRUCT_SIZE.pointers;
+    private static final int ACTIONS = TXN_ID + WORD * ((KEY_LEN + WORD - 1) / WORD);
+
+    private static final int ACTION_WORDS = TransactionCap.ClientAction.STRUCT_SIZE.data + TransactionCap.ClientAction.STRUCT_SIZE.pointers;
+    private static final int VAR_ID_POS_WORDS = TransactionCap.ClientVarIdPos.STRUCT_SIZE.data + TransactionCap.ClientVarIdPos.STRUCT_SIZE.pointers;
+
+    private static final int KEY_SIZE = dataSize(KEY_LEN);
+    private static final int VAR_ID_POS_SIZE = WORD * (VAR_ID_POS_WORDS + CapabilitiesCap.Capability.STRUCT_SIZE.data) + KEY_SIZE;
+
+    // We wrote the message, so there's no need to guard against malicious traversals of it.
+    private static final ReaderOptions READER_OPTIONS = new ReaderOptions(Long.MAX_VALUE, 64);
+
+    private final ByteBuf buf;
+    private final int actionCount;
+    private int actionIdx = 0;
+
+    // initialCapacity should be the sum of the sizes below, so that the frame is built in a
+    // buffer of exactly the right size and never has to grow.
+    ClientTxnEncoder(final boolean retry, final int actionCount, final int initialCapacity) {
+        this.actionCount = actionCount;
+        buf = ByteBufAllocator.DEFAULT.ioBuffer(Math.max(initialCapacity, ACTIONS + WORD));
+        buf.writeZero(ACTIONS);
+        setStructPointer(ROOT_POINTER, CLIENT_MESSAGE, ConnectionCap.ClientMessage.STRUCT_SIZE);
+        buf.setShortLE(CLIENT_MESSAGE, ConnectionCap.ClientMessage.Which.CLIENT_TXN_SUBMISSION.ordinal());
+        setStructPointer(CLIENT_MESSAGE + WORD * ConnectionCap.ClientMessage.STRUCT_SIZE.data, CLIENT_TXN, TransactionCap.ClientTxn.STRUCT_SIZE);
+        if (retry) {
+            buf.setByte(CLIENT_TXN, 1);
+        }
+        setListPointer(CLIENT_TXN_POINTERS, TXN_ID, ELEMENT_SIZE_BYTE, KEY_LEN);
+        allocateStructList(CLIENT_TXN_POINTERS + WORD, actionCount, TransactionCap.ClientAction.STRUCT_SIZE);
+    }
+
+    void read(final VarUUId vUUId, final TxnId version) {
+        final int pointers = nextAction(vUUId, TransactionCap.ClientAction.Which.READ);
+        setKey(pointers + WORD, version.word0, version.word1, version.word2);
+    }
+
+    void write(final VarUUId vUUId, final ByteBuffer value, final GoshawkObjRef[] references) {
+        final int pointers = nextAction(vUUId, TransactionCap.ClientAction.Which.WRITE);
+        setReferences(pointers + 2 * WORD, references);
+        setData(pointers + WORD, value);
+    }
+
+    void readwrite(final VarUUId vUUId, final TxnId version, final ByteBuffer value, final GoshawkObjRef[] references) {
+        final int pointers = nextAction(vUUId, TransactionCap.ClientAction.Which.READWRITE);
+        setKey(pointers + WORD, version.word0, version.word1, version.word2);
+        setData(pointers + 2 * WORD, value);
+        setReferences(pointers + 3 * WORD, references);
+    }
+
+    void create(final VarUUId vUUId, final ByteBuffer value, final GoshawkObjRef[] references) {
+        final int pointers = nextAction(vUUId, TransactionCap.ClientAction.Which.CREATE);
+        setReferences(pointers + 2 * WORD, references);
+        setData(pointers + WORD, value);
+    }
+
+    // The size of the frame without the actions' contents, but including their varIds.
+    static int baseSize(final int actionCount) {
+        return ACTIONS + WORD + actionCount * (WORD * ACTION_WORDS + KEY_SIZE);
+    }
+
+    static int readSize() {
+        return KEY_SIZE;
+    }
+
+    static int writeSize(final ByteBuffer value, final int referenceCount) {
+        return dataSize(value.limit()) + WORD + referenceCount * VAR_ID_POS_SIZE;
+    }
+
+    static int readwriteSize(final ByteBuffer value, final int referenceCount) {
+        return readSize() + writeSize(value, referenceCount);
+    }
+
+    static int createSize(final ByteBuffer value, final int referenceCount) {
+        return writeSize(value, referenceCount);
+    }
+
+    private static int dataSize(final int len) {
+        return (len + WORD - 1) & -WORD;
+    }
+
+    // Completes the frame. The encoder must not be used afterwards.
+    MessageReaderRefCount finish() {
+        if (actionIdx != actionCount) {
+            buf.release();
+            throw new IllegalStateException("Encoded " + actionIdx + " actions, but " + actionCount + " were declared");
+        }
+        final int segmentSize = buf.writerIndex() - FRAME_HEADER;
+        buf.setIntLE(0, 0);
+        buf.setIntLE(4, segmentSize / WORD);
+        final ByteBuffer segment = buf.nioBuffer(FRAME_HEADER, segmentSize).order(ByteOrder.LITTLE_ENDIAN);
+        final MessageReaderRefCount frame = new MessageReaderRefCount(buf, new MessageReader(new ByteBuffer[]{segment}, READER_OPTIONS));
+        // The frame has retained buf, and now owns it.
+        buf.release();
+        return frame;
+    }
+
+    static void setId(final MessageReaderRefCount frame, final TxnId id) {
+        frame.buf.setLong(TXN_ID, id.word0);
+        frame.buf.setLong(TXN_ID + 8, id.word1);
+        frame.buf.setInt(TXN_ID + 16, id.word2);
+    }
+
+    static TransactionCap.ClientTxn.Reader clientTxn(final MessageReaderRefCount frame) {
+        return frame.msg.getRoot(ConnectionCap.ClientMessage.factory).getClientTxnSubmission();
+    }
+
+    // Returns the index of the action's pointer section, with its varId already set.
+    private int nextAction(final VarUUId vUUId, final TransactionCap.ClientAction.Which which) {
+        final int action = ACTIONS + WORD + WORD * ACTION_WORDS * actionIdx;
+        actionIdx++;
+        buf.setShortLE(action, which.ordinal());
+        final int pointers = action + WORD * TransactionCap.ClientAction.STRUCT_SIZE.data;
+        setKey(pointers, vUUId.word0, vUUId.word1, vUUId.word2);
+        return pointers;
+    }
+
+    private void setReferences(final int pointer, final GoshawkObjRef[] references) {
+        final int elements = allocateStructList(pointer, references.length, TransactionCap.ClientVarIdPos.STRUCT_SIZE);
+        for (int idx = 0; idx < references.length; idx++) {
+            final GoshawkObjRef ref = references[idx];
+            final int varIdPos = elements + WORD * VAR_ID_POS_WORDS * idx;
+            final int capability = allocate(CapabilitiesCap.Capability.STRUCT_SIZE.data);
+            buf.setShortLE(capability, capabilityOrdinal(ref.cap));
+            setStructPointer(varIdPos + WORD, capability, CapabilitiesCap.Capability.STRUCT_SIZE);
+            final VarUUId id = ref.obj.id;
+            setKey(varIdPos, id.word0, id.word1, id.word2);
+        }
+    }
+
+    private static int capabilityOrdinal(final Capability cap) {
+        switch (cap) {
+            case None:
+                return CapabilitiesCap.Capability.Which.NONE.ordinal();
+            case Read:
+                return CapabilitiesCap.Capability.Which.READ.ordinal();
+            case Write:
+                return CapabilitiesCap.Capability.Which.WRITE.ordinal();
+            default:
+                return CapabilitiesCap.Capability.Which.READ_WRITE.ordinal();
+        }
+    }
+
+    // Ids are written as their big-endian words, straight from the id.
+    private void setKey(final int pointer, final long w0, final long w1, final int w2) {
+        final int idx = allocate(KEY_SIZE / WORD);
+        buf.setLong(idx, w0);
+        buf.setLong(idx + 8, w1);
+        buf.setInt(idx + 16, w2);
+        setListPointer(pointer, idx, ELEMENT_SIZE_BYTE, KEY_LEN);
+    }
+
+    // As with Data.Reader(value, 0, value.limit()), the bytes from 0 to the limit are used.
+    private void setData(final int pointer, final ByteBuffer data) {
+        final int len = data.limit();
+        final int idx = allocate((len + WORD - 1) / WORD);
+        final ByteBuffer src = data.duplicate();
+        src.position(0);
+        buf.setBytes(idx, src);
+        setListPointer(pointer, idx, ELEMENT_SIZE_BYTE, len);
+    }
+
+    // Returns the index of the first element.
+    private int allocateStructList(final int pointer, final int count, final StructSize size) {
+        final int words = count * (size.data + size.pointers);
+        final int tag = allocate(1 + words);
+        setListPointer(pointer, tag, ELEMENT_SIZE_INLINE_COMPOSITE, words);
+        // The tag is formatted like a struct pointer, with the element count in the offset field.
+        buf.setIntLE(tag, count << 2);
+        buf.setShortLE(tag + 4, size.data);
+        buf.setShortLE(tag + 6, size.pointers);
+        return tag + WORD;
+    }
+
+    // Appends the given number of zeroed words to the segment, returning the index of the first.
+    private int allocate(final int words) {
+        final int idx = buf.writerIndex();
+        buf.writeZero(WORD * words);
+        return idx;
+    }
+
+    private void setStructPointer(final int pointer, final int target, final StructSize size) {
+        buf.setIntLE(pointer, ((target - pointer - WORD) / WORD) << 2);
+        buf.setShortLE(pointer + 4, size.data);
+        buf.setShortLE(pointer + 6, size.pointers);
+    }
+
+    private void setListPointer(final int pointer, final int target, final int elementSize, final int count) {
+        buf.setIntLE(pointer, (((target - pointer - WORD) / WORD) << 2) | LIST_POINTER);
+        buf.setIntLE(pointer + 4, (count << 3) | elementSize);
+    }
+}
@@ -1,45 +1,54 @@
 package io.goshawkdb.client;
 
-import org.capnproto.MessageBuilder;
+import org.capnproto.Data;
 import org.capnproto.StructList;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 import io.goshawkdb.client.capnp.ConnectionCap;
 import io.goshawkdb.client.capnp.TransactionCap;
 import io.netty.bootstrap.Bootstrap;
-import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.timeout.IdleStateHandler;
 
 import static io.goshawkdb.client.ConnectionFactory.BUFFER_SIZE;
 import static io.goshawkdb.client.ConnectionFactory.HEARTBEAT_INTERVAL;
 import static io.goshawkdb.client.ConnectionFactory.HEARTBEAT_INTERVAL_UNIT;
 import static io.goshawkdb.client.ConnectionFactory.KEY_LEN;
+import static io.goshawkdb.client.ConnectionFactory.VERSION_ZERO;
 
 /**
  * Objects of this type represent connections to a GoshawkDB node and are created through use of the
- * {@link ConnectionFactory}. A connection can only run one transaction at a time, and nested
- * transactions are supported.
+ * {@link ConnectionFactory}. A connection can run transactions from several threads at once: each
+ * thread may have one transaction in flight, and nested transactions are supported within a thread.
+ * Transactions submitted from different threads are pipelined over the same connection and share its
+ * object cache. If the {@link ConnectionFactory} enables it, a connection that drops is reestablished
+ * automatically, keeping its object cache; transactions that were waiting for the server when the
+ * connection dropped fail, as their outcome is unknown.
  */
 public class Connection implements AutoCloseable {
 
-    @ChannelHandler.Sharable
-    private static class TxnSubmitter extends ChannelDuplexHandler {
-    }
-
     private enum State {
         AwaitHandshake, AwaitServerHello, Run
     }
@@ -50,68 +59,65 @@ public class Connection implements AutoCloseable {
     private final String host;
     private final int port;
     private final Bootstrap bootstrap;
-    private final Cache cache = new Cache();
-
-    private TxnSubmissionResult liveTxn = null;
-
-    private final ChannelDuplexHandler txnSubmitter = new TxnSubmitter() {
-        @Override
-        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-            if (msg instanceof MessageReaderRefCount) {
-                MessageReaderRefCount read = (MessageReaderRefCount) msg;
-                final ConnectionCap.ClientMessage.Reader result = read.msg.getRoot(ConnectionCap.ClientMessage.factory);
-                if (result.isClientTxnOutcome()) {
-                    ctx.pipeline().remove(this);
-                    final TransactionCap.ClientTxnOutcome.Reader outcome = result.getClientTxnOutcome();
-                    synchronized (lock) {
-                        if (liveTxn == null) {
-                            throw new IllegalStateException("Received txn outcome for unknown txn");
-                        }
-                        liveTxn.outcome = outcome;
-                        liveTxn.reader = read;
-                        liveTxn = null;
-                        lock.notifyAll();
-                    }
-                    return;
-                }
-            }
-            super.channelRead(ctx, msg);
-        }
-
-        @Override
-        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-            synchronized (lock) {
-                if (liveTxn != null) {
-                    liveTxn = null;
-                    lock.notifyAll();
-                }
-            }
-            super.channelInactive(ctx);
-        }
-    };
+    private final EventLoopGroup group;
+    private final HostLatencies latencies;
+    private final String hostKey;
+    // Negative if reconnection is disabled.
+    private final long minReconnectDelay;
+    private final long maxReconnectDelay;
+    // How long callers wait for a reconnection.
+    private final long reconnectWait;
+    // Asynchronous txns started whilst reconnecting, waiting for the roots. Guarded by lock.
+    private final ArrayList<CompletableFuture<Map<String, Cache.RefCap>>> awaitingRoots = new ArrayList<>();
+    private final Cache cache;
+    private final ConcurrentHashMap<TxnId, TxnSubmissionResult> liveTxns = new ConcurrentHashMap<>();
+    private final AtomicLong nextTxnId = new AtomicLong();
+    private final ThreadLocal<TransactionImpl<?>> txn = new ThreadLocal<>();
+    final ValueCodecs valueCodecs = new ValueCodecs();
 
     private ChannelFuture connectFuture;
-    private State state;
-    private ChannelPipeline pipeline;
-    private Map<String, Cache.RefCap> roots;
-    private ByteBuffer nameSpace;
-    private long nextVarUUId;
-    private long nextTxnId;
-    private TransactionImpl<?> txn;
+    private volatile State state;
+    private volatile WaitStrategy waitStrategy = WaitStrategy.Park;
+    private volatile WriteBatcher writer;
+    private volatile Map<String, Cache.RefCap> roots;
+    private volatile NameSpace nameSpace;
+    private long reconnectDelay;
+    private boolean everConnected = false;
+    private boolean closing = false;
+    private boolean closed = false;
 
     Connection(final ConnectionFactory cf, final Certs c, final String h, final int p) {
         port = p;
         host = h;
         certs = c;
         state = State.AwaitHandshake;
+        group = cf.group;
+        latencies = cf.latencies;
+        hostKey = HostLatencies.key(host, port);
+        minReconnectDelay = cf.minReconnectDelay;
+        maxReconnectDelay = cf.maxReconnectDelay;
+        reconnectWait = cf.reconnectWait;
+        reconnectDelay = minReconnectDelay;
+        cache = new Cache(cf.cacheLimit, cf.valueArena, cf.valueStore);
         bootstrap = new Bootstrap();
         bootstrap.group(cf.group);
-        bootstrap.channel(NioSocketChannel.class);
+        bootstrap.channel(cf.channelClass);
         bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
         bootstrap.option(ChannelOption.SO_REUSEADDR, true);
         bootstrap.option(ChannelOption.TCP_NODELAY, true);
         bootstrap.option(ChannelOption.SO_RCVBUF, BUFFER_SIZE);
         bootstrap.option(ChannelOption.SO_SNDBUF, BUFFER_SIZE);
+        if (cf.isNative()) {
+            // Transactions are request/response, so don't let delayed acks hold up outcomes.
+            bootstrap.option(EpollChannelOption.TCP_QUICKACK, true);
+        }
+        synchronized (cf.options) {
+            cf.options.forEach((option, value) -> {
+                @SuppressWarnings("unchecked")
+                final ChannelOption<Object> o = (ChannelOption<Object>) option;
+                bootstrap.option(o, value);
+            });
+        }
 
         bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             @Override
@@ -130,11 +136,23 @@ public class Connection implements AutoCloseable {
             connectFuture = bootstrap.connect(host, port);
             future = connectFuture;
         }
-        future.sync();
+        try {
+            future.sync();
+        } catch (final InterruptedException e) {
+            throw e;
+        } catch (final Exception e) {
+            latencies.recordFailure(hostKey);
+            throw e;
+        }
         synchronized (lock) {
             while (roots == null && future.channel().isOpen()) {
                 lock.wait();
             }
+            if (roots == null) {
+                latencies.recordFailure(hostKey);
+            } else {
+                latencies.recordSuccess(hostKey);
+            }
         }
     }
 
@@ -152,22 +170,31 @@ public class Connection implements AutoCloseable {
         return false;
     }
 
+    /**
+     * @return the node this connection is to, in host:port format.
+     */
+    public String getHost() {
+        return hostKey;
+    }
+
+    // The factory's current estimate of the txn round trip time to our host, in nanoseconds.
+    long roundTripTime() {
+        return latencies.roundTrip(hostKey);
+    }
+
     /**
      * Blocks until the connection has been closed. Does not cause the connection to close, merely
-     * waits until it has been closed.
+     * waits until it has been closed. If the connection reconnects automatically, this waits until
+     * it has been closed and will not reconnect.
      *
      * @throws InterruptedException if an interruption occurs.
      */
     public void awaitClose() throws InterruptedException {
-        ChannelFuture closeFuture = null;
         synchronized (lock) {
-            if (connectFuture != null && (connectFuture.channel().isOpen() || connectFuture.channel().isActive())) {
-                closeFuture = connectFuture.channel().closeFuture();
+            while (!closed) {
+                lock.wait();
             }
         }
-        if (closeFuture != null) {
-            closeFuture.sync();
-        }
     }
 
     /**
@@ -178,14 +205,34 @@ public class Connection implements AutoCloseable {
      */
     @Override
     public void close() throws InterruptedException {
-        ChannelFuture closeFuture = null;
+        final ChannelFuture closeFuture = startClose();
+        if (closeFuture != null) {
+            closeFuture.sync();
+        }
+    }
+
+    // Starts closing the connection without waiting for it to close.
+    ChannelFuture startClose() {
         synchronized (lock) {
+            closing = true;
             if (connectFuture != null && (connectFuture.channel().isOpen() || connectFuture.channel().isActive())) {
-                closeFuture = connectFuture.channel().close();
+                return connectFuture.channel().close();
             }
+            // Not connected, so we may be waiting to reconnect.
+            setClosed();
         }
-        if (closeFuture != null) {
-            closeFuture.sync();
+        return null;
+    }
+
+    // Drops the socket as a network failure would, without closing the connection. Returns once
+    // the disconnection has been handled.
+    void dropChannel() throws InterruptedException {
+        final ChannelFuture f;
+        synchronized (lock) {
+            f = connectFuture;
+        }
+        if (f != null) {
+            f.channel().close().sync();
         }
     }
 
@@ -198,35 +245,355 @@ public class Connection implements AutoCloseable {
      * @return The result of the transaction function.
      */
     public <R> TransactionResult<R> runTransaction(final TransactionFunction<R> fun) {
-        final Map<String, Cache.RefCap> r;
-        final TransactionImpl<?> oldTxn;
+        return startTransaction(fun, null);
+    }
+
+    /**
+     * Run a transaction, waiting for the server's responses with the given strategy rather than
+     * the connection's.
+     *
+     * @param fun          The transaction function to run. This will be automatically restarted
+     *                     as many times as necessary until the transaction either commits or
+     *                     chooses to abort.
+     * @param waitStrategy How to wait for the server's responses within this transaction.
+     * @param <R>          The type of the result of the transaction function.
+     * @return The result of the transaction function.
+     */
+    public <R> TransactionResult<R> runTransaction(final TransactionFunction<R> fun, final WaitStrategy waitStrategy) {
+        if (waitStrategy == null) {
+            throw new IllegalArgumentException("waitStrategy must not be null");
+        }
+        return startTransaction(fun, waitStrategy);
+    }
+
+    // A null waitStrategy means inherit it from the parent txn, or else use the connection's.
+    private <R> TransactionResult<R> startTransaction(final TransactionFunction<R> fun, final WaitStrategy waitStrategy) {
+        final Map<String, Cache.RefCap> r = awaitRoots();
+        final TransactionImpl<?> oldTxn = txn.get();
+        final TransactionImpl<R> curTxn = new TransactionImpl<>(fun, this, this.cache, r, oldTxn, null, waitStrategy);
+        enterTxn(curTxn);
+        try {
+            return curTxn.run();
+        } finally {
+            exitTxn(oldTxn);
+        }
+    }
+
+    /**
+     * Run a transaction without blocking the calling thread. The transaction function is run on
+     * the {@link ForkJoinPool#commonPool()}; see {@link #runTransactionAsync(TransactionFunction,
+     * Executor)}.
+     *
+     * @param fun The transaction function to run.
+     * @param <R> The type of the result of the transaction function.
+     * @return A future which completes with the result of the transaction function.
+     */
+    public <R> CompletableFuture<TransactionResult<R>> runTransactionAsync(final TransactionFunction<R> fun) {
+        return runTransactionAsync(fun, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Run a transaction without blocking the calling thread. No thread is held whilst waiting for
+     * the server: when the transaction function needs an object that is not in the cache, or calls
+     * retry, the current attempt is abandoned and the function is run again on the executor once
+     * the server has responded. Similarly, the transaction is restarted on the executor if the
+     * server rejects the commit. The transaction function must therefore be prepared to be run
+     * several times, exactly as with {@link #runTransaction(TransactionFunction)}. An asynchronous
+     * transaction is always a top-level transaction, even if this method is called from within
+     * another transaction; transactions nested inside the transaction function are supported. If
+     * the connection is reconnecting, the transaction starts once it has reconnected, waiting no
+     * longer than {@link Connection#runTransaction(TransactionFunction)} would; see {@link
+     * ConnectionFactory#reconnect(long, long, long, TimeUnit)}.
+     *
+     * @param fun      The transaction function to run.
+     * @param executor The executor on which to run the transaction function.
+     * @param <R>      The type of the result of the transaction function.
+     * @return A future which completes with the result of the transaction function, or completes
+     * exceptionally if the connection fails, is closed, or does not reconnect in time.
+     */
+    public <R> CompletableFuture<TransactionResult<R>> runTransactionAsync(final TransactionFunction<R> fun, final Executor executor) {
+        final CompletableFuture<TransactionResult<R>> future = new CompletableFuture<>();
+        awaitRootsAsync().whenCompleteAsync((r, e) -> {
+            if (e == null) {
+                new TransactionImpl<>(fun, this, this.cache, r, null, executor, null).runAsync(future);
+            } else {
+                future.completeExceptionally(e);
+            }
+        }, executor);
+        return future;
+    }
+
+    /**
+     * Sets how threads running transactions on this connection wait for the server's responses.
+     * The default is {@link WaitStrategy#Park}. This can be overridden for individual transactions
+     * with {@link #runTransaction(TransactionFunction, WaitStrategy)}.
+     *
+     * @param waitStrategy The strategy to use for subsequent transactions.
+     */
+    public void setWaitStrategy(final WaitStrategy waitStrategy) {
+        if (waitStrategy == null) {
+            throw new IllegalArgumentException("waitStrategy must not be null");
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * @return the strategy used by transactions on this connection to wait for the server's
+     * responses.
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Sets the codec used to compress object values written by subsequent transactions on this
+     * connection. Only values of at least threshold bytes, which the codec manages to shrink, are
+     * compressed. Values are decompressed transparently when read, whatever codec (if any) is
+     * currently set, provided the codec that compressed them is known to this connection. By
+     * default, values are neither compressed nor decompressed: they are read and written exactly
+     * as stored. Once a codec has been set, values are decompressed even if it is later unset.
+     *
+     * @param codec     The codec to compress with, or null to stop compressing values.
+     * @param threshold The size in bytes below which values are left uncompressed.
+     */
+    public void setValueCodec(final ValueCodec codec, final int threshold) {
+        valueCodecs.set(codec, threshold);
+    }
+
+    /**
+     * @return the codec used to compress object values, or null if values are not compressed.
+     */
+    public ValueCodec getValueCodec() {
+        return valueCodecs.get();
+    }
+
+    /**
+     * Makes a codec known to this connection so that values compressed with it can be read,
+     * without using it to compress values. Connections which read compressed values but don't
+     * write them must register the codec, even {@link ValueCodec#DEFLATE}: until a codec has been
+     * set or registered, values are returned exactly as stored.
+     *
+     * @param codec The codec.
+     */
+    public void registerValueCodec(final ValueCodec codec) {
+        valueCodecs.register(codec);
+    }
+
+    /**
+     * Keeps the object in this connection's cache regardless of any limit set by
+     * {@link ConnectionFactory#cacheLimit(long)}, so that reading it never has to go to the
+     * server. Pins are counted, so the object can be evicted again once it has been unpinned as
+     * many times as it has been pinned. Roots are always pinned.
+     *
+     * @param objRef The object to pin
+     */
+    public void pin(final GoshawkObjRef objRef) {
+        cache.pin(objRef.id);
+    }
+
+    /**
+     * Reverses one call to {@link #pin(GoshawkObjRef)}.
+     *
+     * @param objRef The object to unpin
+     * @throws IllegalStateException if the object is not pinned
+     */
+    public void unpin(final GoshawkObjRef objRef) {
+        cache.unpin(objRef.id);
+    }
+
+    /**
+     * Loads all the objects up to maxDepth references away from the roots into this connection's
+     * cache, so that transactions need not wait for them to be fetched one at a time as they first
+     * read them. See {@link #warmCache(int, Predicate, String...)}.
+     *
+     * @param maxDepth How far from the roots to load objects. 0 loads just the roots.
+     * @return The number of objects loaded from the server.
+     * @throws InterruptedException if interrupted whilst waiting for the server
+     */
+    public int warmCache(final int maxDepth) throws InterruptedException {
+        return warmCache(maxDepth, null);
+    }
+
+    /**
+     * Loads a subgraph of objects into this connection's cache, so that transactions need not wait
+     * for them to be fetched one at a time as they first read them. This is intended to be called
+     * after connecting and before the connection is put to use. Objects are loaded breadth first
+     * from the roots, a level of the graph at a time, in large batches which are sent to the server
+     * together. Objects which are already cached, or which cannot be read, are not loaded.
+     *
+     * @param maxDepth  How far from the roots to load objects. 0 loads just the roots.
+     * @param follow    Tests the value of each object loaded; its references are only followed if
+     *                  this returns true. If null, all references are followed.
+     * @param rootNames The names of the roots to start from. If none are given, all the roots are
+     *                  used.
+     * @return The number of objects loaded from the server.
+     * @throws InterruptedException if interrupted whilst waiting for the server
+     */
+    public int warmCache(final int maxDepth, final Predicate<ByteBuffer> follow, final String... rootNames) throws InterruptedException {
+        if (inTransaction()) {
+            throw new IllegalStateException("Cannot warm the cache from within a transaction");
+        }
+        final Map<String, Cache.RefCap> r = awaitRoots();
+        final List<VarUUId> start = new ArrayList<>();
+        if (rootNames.length == 0) {
+            r.values().forEach(rc -> start.add(rc.vUUId));
+        } else {
+            for (String name : rootNames) {
+                final Cache.RefCap rc = r.get(name);
+                if (rc == null) {
+                    throw new IllegalArgumentException("No such root: " + name);
+                }
+                start.add(rc.vUUId);
+            }
+        }
+        return new CacheWarmer(this, cache, follow).warm(start, maxDepth);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this connection's object cache. This is cheap enough
+     * to be called frequently, for example to export to monitoring.
+     *
+     * @return The cache statistics.
+     */
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Saves the objects in this connection's cache to a file, from which the cache of a later
+     * connection to the same cluster can be filled by {@link #loadCacheSnapshot(Path)}, rather
+     * than from the server one object at a time. This may be called periodically, or before the
+     * connection is closed. The file is replaced atomically, so a snapshot is never left half
+     * written.
+     *
+     * @param path The file to save the snapshot to.
+     * @return The number of objects saved.
+     * @throws IOException if the snapshot cannot be written
+     */
+    public int saveCacheSnapshot(final Path path) throws IOException {
+        return CacheSnapshot.save(cache, awaitRoots().values(), path);
+    }
+
+    /**
+     * Adds the objects saved by {@link #saveCacheSnapshot(Path)} to this connection's cache. This
+     * is intended to be called after connecting and before the connection is put to use. Objects
+     * already in the cache are left alone. The saved versions may since have been modified: any
+     * transaction that reads such an object is restarted with its current version, just as when
+     * another client has modified an object since we last read it.
+     *
+     * @param path The file to load the snapshot from.
+     * @return The number of objects added to the cache.
+     * @throws IOException           if the snapshot cannot be read, or is not a snapshot
+     * @throws IllegalStateException if the snapshot was saved by a connection with different roots
+     */
+    public int loadCacheSnapshot(final Path path) throws IOException {
+        if (inTransaction()) {
+            throw new IllegalStateException("Cannot load a cache snapshot from within a transaction");
+        }
+        return CacheSnapshot.load(cache, awaitRoots().values(), path);
+    }
+
+    boolean inTransaction() {
+        return txn.get() != null;
+    }
+
+    TransactionImpl<?> enterTxn(final TransactionImpl<?> curTxn) {
+        final TransactionImpl<?> oldTxn = txn.get();
+        txn.set(curTxn);
+        return oldTxn;
+    }
+
+    void exitTxn(final TransactionImpl<?> oldTxn) {
+        if (oldTxn == null) {
+            txn.remove();
+        } else {
+            txn.set(oldTxn);
+        }
+    }
+
+    // Returns the roots, waiting up to reconnectWait for an automatic reconnection to finish if
+    // one is in progress.
+    private Map<String, Cache.RefCap> awaitRoots() {
         synchronized (lock) {
+            boolean interrupted = false;
+            final long deadline = System.nanoTime() + reconnectWait;
+            long remaining = reconnectWait;
+            while (roots == null && isReconnecting() && remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
             if (roots == null) {
-                throw new IllegalStateException("Unable to start transaction: roots are not ready");
+                throw rootsUnavailable();
             }
-            r = roots;
-            oldTxn = txn;
+            return roots;
         }
-        final TransactionImpl<R> curTxn = new TransactionImpl<>(fun, this, this.cache, r, oldTxn);
+    }
+
+    // As awaitRoots, but without blocking: the future completes with the roots, or exceptionally
+    // if the connection closes or has not reconnected within reconnectWait.
+    private CompletableFuture<Map<String, Cache.RefCap>> awaitRootsAsync() {
+        final CompletableFuture<Map<String, Cache.RefCap>> future = new CompletableFuture<>();
         synchronized (lock) {
-            txn = curTxn;
+            if (roots != null) {
+                future.complete(roots);
+            } else if (!isReconnecting()) {
+                future.completeExceptionally(rootsUnavailable());
+            } else {
+                awaitingRoots.add(future);
+                group.schedule(() -> {
+                    synchronized (lock) {
+                        if (awaitingRoots.remove(future)) {
+                            future.completeExceptionally(rootsUnavailable());
+                        }
+                    }
+                }, reconnectWait, TimeUnit.NANOSECONDS);
+            }
         }
-        try {
-            return curTxn.run();
-        } finally {
-            synchronized (lock) {
-                txn = oldTxn;
+        return future;
+    }
+
+    // Must be called with lock held.
+    private boolean isReconnecting() {
+        return everConnected && !closed && minReconnectDelay >= 0;
+    }
+
+    // Must be called with lock held, once the roots have been found to be unavailable.
+    private IllegalStateException rootsUnavailable() {
+        if (closed) {
+            return new IllegalStateException("Unable to start transaction: connection is closed");
+        } else if (isReconnecting()) {
+            return new IllegalStateException("Unable to start transaction: not reconnected within " + TimeUnit.NANOSECONDS.toMillis(reconnectWait) + "ms");
+        }
+        return new IllegalStateException("Unable to start transaction: roots are not ready");
+    }
+
+    // The last 12 bytes of the ids of the objects we create and the txns we submit, which the server
+    // allocates to us on each connection, and the counter for the first 8 bytes of object ids.
+    private static final class NameSpace {
+        final long word1;
+        final int word2;
+        final AtomicLong nextVarUUId = new AtomicLong();
+
+        NameSpace(final Data.Reader nameSpace) {
+            if (nameSpace.size < KEY_LEN - 8) {
+                throw new IllegalStateException("Namespace too short: " + nameSpace.size + " bytes");
             }
+            word1 = Ids.getLong(nameSpace.buffer, nameSpace.offset);
+            word2 = Ids.getInt(nameSpace.buffer, nameSpace.offset + 8);
         }
     }
 
+    // Lock free: creating objects in bulk doesn't contend on the connection.
     VarUUId nextVarUUId() {
-        synchronized (lock) {
-            nameSpace.putLong(0, nextVarUUId);
-            nameSpace.rewind();
-            nextVarUUId++;
-            return new VarUUId(nameSpace);
-        }
+        final NameSpace ns = nameSpace;
+        return new VarUUId(ns.nextVarUUId.getAndIncrement(), ns.word1, ns.word2);
     }
 
     void serverHello(final ConnectionCap.HelloClientFromServer.Reader hello, final ChannelHandlerContext ctx) throws InterruptedException {
@@ -237,19 +604,19 @@ public class Connection implements AutoCloseable {
         } else {
             final Map<String, Cache.RefCap> roots = new HashMap<>();
             for (ConnectionCap.Root.Reader reader : rootsCap) {
-                final VarUUId rootId = new VarUUId(reader.getVarId().asByteBuffer());
+                final VarUUId rootId = new VarUUId(reader.getVarId());
                 roots.put(reader.getName().toString(), new Cache.RefCap(rootId, reader.getCapability()));
             }
             cache.setRoots(roots);
             nextState(ctx);
             synchronized (lock) {
-                pipeline = ctx.pipeline();
+                everConnected = true;
+                reconnectDelay = minReconnectDelay;
+                nameSpace = new NameSpace(hello.getNamespace());
+                // Submissions don't take the lock: roots must be published last.
                 this.roots = Collections.unmodifiableMap(roots);
-                nameSpace = ByteBuffer.allocate(KEY_LEN);
-                nameSpace.position(8);
-                nameSpace.put(hello.getNamespace().asByteBuffer());
-                nameSpace.order(ByteOrder.BIG_ENDIAN);
-                nextVarUUId = 0;
+                awaitingRoots.forEach(f -> f.complete(this.roots));
+                awaitingRoots.clear();
                 lock.notifyAll();
             }
         }
@@ -258,9 +625,64 @@ public class Connection implements AutoCloseable {
     void disconnected() {
         synchronized (lock) {
             roots = null;
-            cache.clear();
+            if (closing || !everConnected || minReconnectDelay < 0) {
+                setClosed();
+            } else {
+                // Keep the cache: the server will correct anything that has changed whilst we
+                // were away by aborting with updates when a transaction first uses it.
+                cache.markStale();
+                scheduleReconnect();
+            }
             lock.notifyAll();
         }
+        // Any submission racing with us will see roots == null and fail itself.
+        for (TxnId txnId : liveTxns.keySet()) {
+            final TxnSubmissionResult result = liveTxns.remove(txnId);
+            if (result != null) {
+                result.error = "Connection disconnected whilst waiting txn result.";
+                result.complete();
+            }
+        }
+    }
+
+    // Must be called with lock held.
+    private void setClosed() {
+        closed = true;
+        cache.clear();
+        final IllegalStateException e = rootsUnavailable();
+        awaitingRoots.forEach(f -> f.completeExceptionally(e));
+        awaitingRoots.clear();
+        lock.notifyAll();
+    }
+
+    // Must be called with lock held.
+    private void scheduleReconnect() {
+        final long delay = reconnectDelay;
+        reconnectDelay = Math.min(reconnectDelay * 2, maxReconnectDelay);
+        group.schedule(this::reconnect, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void reconnect() {
+        synchronized (lock) {
+            if (closing) {
+                setClosed();
+                return;
+            }
+            state = State.AwaitHandshake;
+            connectFuture = bootstrap.connect(host, port);
+            connectFuture.addListener((final ChannelFuture future) -> {
+                if (!future.isSuccess()) {
+                    // Failures after connecting arrive through disconnected instead.
+                    synchronized (lock) {
+                        if (closing) {
+                            setClosed();
+                        } else {
+                            scheduleReconnect();
+                        }
+                    }
+                }
+            });
+        }
     }
 
     void nextState(final ChannelHandlerContext ctx) {
@@ -273,69 +695,131 @@ public class Connection implements AutoCloseable {
                 }
                 case AwaitServerHello: {
                     state = State.Run;
-                    ctx.pipeline().addLast(new HeartbeatHandler());
+                    writer = new WriteBatcher(ctx.channel());
+                    ctx.pipeline().get(CapnProtoCodec.class).startRunning();
+                    ctx.pipeline().addLast(new HeartbeatHandler(writer));
+                    ctx.pipeline().addLast(new TxnDispatcher(this));
                     break;
                 }
             }
         }
     }
 
-    TxnSubmissionResult submitTransaction(final MessageBuilder msg, final TransactionCap.ClientTxn.Builder cTxn) {
-        synchronized (lock) {
-            if (state != State.Run) {
-                throw new IllegalStateException("Connection in wrong state: " + state);
-            } else if (liveTxn != null) {
-                throw new IllegalStateException("Existing live txn");
-            }
-            nameSpace.putLong(0, nextTxnId);
-            nameSpace.rewind();
-            byte[] txnIdArray = new byte[KEY_LEN];
-            nameSpace.get(txnIdArray);
-            cTxn.setId(txnIdArray);
-            final TxnSubmissionResult result = new TxnSubmissionResult();
-            liveTxn = result;
-            pipeline.addLast(txnSubmitter);
-            pipeline.writeAndFlush(msg);
-            while (result.outcome == null && isConnected()) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException e) {
-                }
-            }
-            if (result.outcome == null) {
-                throw new IllegalStateException("Connection disconnected whilst waiting txn result.");
+    // The frame comes from a ClientTxnEncoder, and is owned by the connection from here on.
+    TxnSubmissionResult submitTransaction(final MessageReaderRefCount frame, final WaitStrategy waitStrategy) {
+        return await(submit(frame, null, Thread.currentThread(), null), waitStrategy);
+    }
+
+    CompletableFuture<TxnSubmissionResult> submitTransactionAsync(final MessageReaderRefCount frame) {
+        final CompletableFuture<TxnSubmissionResult> future = new CompletableFuture<>();
+        submit(frame, null, future);
+        return future;
+    }
+
+    // Loads vUUId into the cache by reading it at VERSION_ZERO, which the server always aborts,
+    // sending us the current version. The result's loaded field is then a copy of the entry,
+    // taken as soon as the outcome has been applied, so that it cannot have been evicted by the
+    // time the caller gets to it. The caller must release its owner.
+    TxnSubmissionResult loadVar(final VarUUId vUUId, final WaitStrategy waitStrategy) {
+        return await(submit(loadFrame(vUUId), vUUId, Thread.currentThread(), null), waitStrategy);
+    }
+
+    CompletableFuture<TxnSubmissionResult> loadVarAsync(final VarUUId vUUId) {
+        final CompletableFuture<TxnSubmissionResult> future = new CompletableFuture<>();
+        submit(loadFrame(vUUId), vUUId, null, future);
+        return future;
+    }
+
+    private static MessageReaderRefCount loadFrame(final VarUUId vUUId) {
+        final ClientTxnEncoder encoder = new ClientTxnEncoder(false, 1, ClientTxnEncoder.baseSize(1) + ClientTxnEncoder.readSize());
+        encoder.read(vUUId, VERSION_ZERO);
+        return encoder.finish();
+    }
+
+    private static TxnSubmissionResult await(final TxnSubmissionResult result, final WaitStrategy waitStrategy) {
+        result.await(waitStrategy);
+        if (result.error != null) {
+            throw new IllegalStateException(result.error);
+        }
+        return result;
+    }
+
+    private TxnSubmissionResult submit(final MessageReaderRefCount frame, final Thread waiter, final CompletableFuture<TxnSubmissionResult> future) {
+        return submit(frame, null, waiter, future);
+    }
+
+    private TxnSubmissionResult submit(final MessageReaderRefCount frame, final VarUUId loading, final Thread waiter, final CompletableFuture<TxnSubmissionResult> future) {
+        if (state != State.Run) {
+            frame.release();
+            throw new IllegalStateException("Connection in wrong state: " + state);
+        } else if (roots == null) {
+            frame.release();
+            throw new IllegalStateException("Connection disconnected.");
+        }
+        final NameSpace ns = nameSpace;
+        final TxnId txnId = new TxnId(nextTxnId.getAndIncrement(), ns.word1, ns.word2);
+        ClientTxnEncoder.setId(frame, txnId);
+        final TxnSubmissionResult result = new TxnSubmissionResult(txnId, frame, loading, waiter, future);
+        liveTxns.put(result.txnId, result);
+        if (roots == null) {
+            // We may have missed disconnected() draining liveTxns.
+            if (liveTxns.remove(result.txnId) != null) {
+                result.error = "Connection disconnected whilst waiting txn result.";
+                result.complete();
             }
-            if (!Arrays.equals(txnIdArray, result.outcome.getId().toArray())) {
-                throw new IllegalStateException("Received txn outcome for wrong txn");
+        } else {
+            // The channel releases what it writes; we keep our reference until the outcome.
+            writer.write(frame.content().retainedDuplicate());
+        }
+        return result;
+    }
+
+    // Called from the TxnDispatcher in the event loop, so outcomes are applied to the cache in the
+    // order the server sent them, regardless of which threads are waiting for them.
+    void txnOutcome(final TransactionCap.ClientTxnOutcome.Reader outcome, final MessageReaderRefCount reader) {
+        final TxnId txnId = new TxnId(outcome.getId());
+        final TxnSubmissionResult result = liveTxns.remove(txnId);
+        if (result == null) {
+            reader.release();
+            throw new IllegalStateException("Received txn outcome for unknown txn: " + txnId);
+        }
+        try {
+            final TxnId finalTxnId = new TxnId(outcome.getFinalId());
+            final long finalTxnIdLong = finalTxnId.word0;
+            final long txnIdLong = txnId.word0;
+            if (finalTxnIdLong < txnIdLong) {
+                result.error = "Final (" + finalTxnIdLong + ") < submitted (" + txnIdLong + ")";
+                return;
             }
-            final ByteBuffer finalTxnIdBuf = result.outcome.getFinalId().asByteBuffer();
-            finalTxnIdBuf.order(ByteOrder.BIG_ENDIAN);
-            final long finalTxnIdLong = finalTxnIdBuf.getLong(0);
-            if (finalTxnIdLong < nextTxnId) {
-                throw new IllegalStateException("Final (" + finalTxnIdLong + ") < next (" + nextTxnId + ")");
+            nextTxnId.accumulateAndGet(finalTxnIdLong + 1, Math::max);
+            if (!result.retry) {
+                latencies.recordRoundTrip(hostKey, System.nanoTime() - result.submittedAt);
             }
-            nextTxnId = finalTxnIdLong + 1;
-            final TxnId finalTxnId = new TxnId(finalTxnIdBuf);
-            switch (result.outcome.which()) {
+            result.finalTxnId = finalTxnId;
+            switch (outcome.which()) {
                 case COMMIT: {
-                    result.reader.release();
-                    cache.updateFromTxnCommit(cTxn.asReader(), finalTxnId);
+                    cache.updateFromTxnCommit(ClientTxnEncoder.clientTxn(result.frame), result.finalTxnId, result.frame);
                     break;
                 }
                 case ABORT: {
-                    result.modifiedVars = cache.updateFromTxnAbort(result.outcome.getAbort(), result.reader);
-                    result.reader.release();
+                    result.modifiedVars = cache.updateFromTxnAbort(outcome.getAbort(), reader);
+                    if (result.loading != null) {
+                        result.loaded = cache.peek(result.loading);
+                    }
                     break;
                 }
                 case ERROR: {
-                    try {
-                        throw new IllegalStateException(result.outcome.getError().toString());
-                    } finally {
-                        result.reader.release();
-                    }
+                    result.error = outcome.getError().toString();
+                    break;
                 }
             }
-            return result;
+            result.outcome = outcome.which();
+        } catch (final RuntimeException e) {
+            result.error = e.toString();
+            throw e;
+        } finally {
+            reader.release();
+            result.complete();
         }
     }
 }
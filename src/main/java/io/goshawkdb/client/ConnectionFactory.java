@@ -1,9 +1,19 @@
 package io.goshawkdb.client;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
 
 /**
  * This class is used to construct connections to a GoshawkDB node or cluster.
@@ -17,24 +27,182 @@ public class ConnectionFactory {
     static final int HEARTBEAT_INTERVAL = 2;
     static final TimeUnit HEARTBEAT_INTERVAL_UNIT = TimeUnit.SECONDS;
     static final int KEY_LEN = 20;
-    static final TxnId VERSION_ZERO = new TxnId(new byte[KEY_LEN]);
+    static final TxnId VERSION_ZERO = new TxnId(0, 0, 0);
+    static final long DEFAULT_RECONNECT_WAIT = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * The network transports that connections can use.
+     */
+    public enum Transport {
+        /**
+         * Java NIO. Available on every platform.
+         */
+        Nio,
+        /**
+         * Netty's native epoll transport. Only available on Linux; where it is not available, Nio
+         * is used instead.
+         */
+        Native
+    }
 
     public final EventLoopGroup group;
+    final Class<? extends SocketChannel> channelClass;
+    final Map<ChannelOption<?>, Object> options = Collections.synchronizedMap(new LinkedHashMap<>());
+    final HostLatencies latencies = new HostLatencies();
+    volatile long minReconnectDelay = -1;
+    volatile long maxReconnectDelay = -1;
+    volatile long reconnectWait = DEFAULT_RECONNECT_WAIT;
+    volatile long cacheLimit = Long.MAX_VALUE;
+    volatile ValueArena valueArena = null;
+    volatile ValueStore valueStore = null;
 
     /**
-     * Create a new ConnectionFactory using a new {@link NioEventLoopGroup}
+     * Create a new ConnectionFactory using the native transport if it is available, and a new
+     * {@link NioEventLoopGroup} otherwise.
      */
     public ConnectionFactory() {
-        this(new NioEventLoopGroup());
+        this(Transport.Native);
+    }
+
+    /**
+     * Create a new ConnectionFactory using a new {@link EventLoopGroup} for the given transport.
+     *
+     * @param transport the transport to use. If the native transport is requested but is not
+     *                  available, Nio is used instead.
+     */
+    public ConnectionFactory(final Transport transport) {
+        this(transport == Transport.Native && Epoll.isAvailable() ? new EpollEventLoopGroup() : new NioEventLoopGroup());
     }
 
     /**
-     * Create a new ConnectionFactory
+     * Create a new ConnectionFactory. The channel type used by connections is chosen to match the
+     * group: an {@link EpollEventLoopGroup} uses the native epoll transport, anything else uses
+     * NIO.
      *
      * @param group the netty {@link EventLoopGroup} to use
      */
     public ConnectionFactory(final EventLoopGroup group) {
         this.group = group;
+        channelClass = (group instanceof EpollEventLoopGroup) ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * Set a socket option on all connections subsequently created by this factory. This overrides
+     * the defaults the client sets, and allows options specific to the transport in use to be set,
+     * for example those in {@link io.netty.channel.epoll.EpollChannelOption}.
+     *
+     * @param option the option to set
+     * @param value  the value of the option
+     * @param <T>    the type of the option's value
+     * @return this factory
+     */
+    public <T> ConnectionFactory option(final ChannelOption<T> option, final T value) {
+        options.put(option, value);
+        return this;
+    }
+
+    /**
+     * Make connections subsequently created by this factory reconnect automatically if they are
+     * disconnected, rather than closing. The delay between attempts starts at initialDelay and
+     * doubles after each failed attempt, up to maxDelay. The object cache is kept across the
+     * reconnection, so the connection does not start cold. By default, connections do not
+     * reconnect. Transactions started whilst disconnected wait up to 30 seconds for the
+     * reconnection; see {@link #reconnect(long, long, long, TimeUnit)}.
+     *
+     * @param initialDelay the delay before the first reconnection attempt
+     * @param maxDelay     the maximum delay between reconnection attempts
+     * @param unit         the unit of both delays
+     * @return this factory
+     */
+    public ConnectionFactory reconnect(final long initialDelay, final long maxDelay, final TimeUnit unit) {
+        return reconnect(unit.toNanos(initialDelay), unit.toNanos(maxDelay), DEFAULT_RECONNECT_WAIT, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * As {@link #reconnect(long, long, TimeUnit)}, but also sets how long transactions, and other
+     * calls that need the connection, wait for a reconnection to succeed before failing with an
+     * {@link IllegalStateException}. Attempts to reconnect continue regardless.
+     *
+     * @param initialDelay the delay before the first reconnection attempt
+     * @param maxDelay     the maximum delay between reconnection attempts
+     * @param maxWait      the longest a caller waits for a reconnection
+     * @param unit         the unit of the delays and the wait
+     * @return this factory
+     */
+    public ConnectionFactory reconnect(final long initialDelay, final long maxDelay, final long maxWait, final TimeUnit unit) {
+        if (initialDelay <= 0 || maxDelay < initialDelay || maxWait < 0) {
+            throw new IllegalArgumentException("Invalid reconnect delays: initial " + initialDelay + ", max " + maxDelay + ", wait " + maxWait);
+        }
+        minReconnectDelay = unit.toNanos(initialDelay);
+        maxReconnectDelay = unit.toNanos(maxDelay);
+        reconnectWait = unit.toNanos(maxWait);
+        return this;
+    }
+
+    /**
+     * Limit the memory used by the object cache of each connection subsequently created by this
+     * factory. When the values cached exceed the limit, the least recently used are evicted, and
+     * are fetched from the server again if they are next read. What the cache records of objects
+     * it has seen references to, but holds no value of, also counts towards the limit. Objects
+     * which are read repeatedly are favoured over those which were only read once. The roots, and
+     * objects pinned with {@link Connection#pin(GoshawkObjRef)}, are never evicted and do not count
+     * towards the limit. By default, the cache is unbounded.
+     *
+     * @param bytes the approximate number of bytes of values to cache
+     * @return this factory
+     */
+    public ConnectionFactory cacheLimit(final long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache limit: " + bytes);
+        }
+        cacheLimit = bytes;
+        return this;
+    }
+
+    /**
+     * Make connections subsequently created by this factory keep the values of cached objects
+     * off-heap. Each value is copied once, when it arrives, into native memory managed by a pool
+     * shared by all the factory's connections, and that memory is reused once the value has been
+     * superseded, deleted or evicted and no transaction is still reading it. This keeps large
+     * caches out of the way of the garbage collector. By default, values are cached on the heap,
+     * or as views onto the network buffers they arrived in.
+     *
+     * @param enabled whether to cache values off-heap
+     * @return this factory
+     */
+    public synchronized ConnectionFactory offHeapCache(final boolean enabled) {
+        if (!enabled) {
+            valueArena = null;
+        } else if (valueArena == null) {
+            valueArena = new ValueArena();
+        }
+        if (valueStore != null) {
+            valueStore = new ValueStore(valueArena);
+        }
+        return this;
+    }
+
+    /**
+     * Make connections subsequently created by this factory share the values of cached objects.
+     * The value written to an object by a transaction never changes, so however many of the
+     * factory's connections cache it, for example in a {@link ConnectionPool}, only one copy is
+     * kept. Each connection still tracks its own versions and capabilities. Values are copied out
+     * of the network buffers they arrived in, onto the heap or off-heap according to
+     * {@link #offHeapCache(boolean)}. By default, each connection caches its own copies.
+     *
+     * @param enabled whether to share cached values between connections
+     * @return this factory
+     */
+    public synchronized ConnectionFactory shareCachedValues(final boolean enabled) {
+        valueStore = enabled ? new ValueStore(valueArena) : null;
+        return this;
+    }
+
+    /**
+     * @return true iff connections from this factory use the native epoll transport.
+     */
+    public boolean isNative() {
+        return channelClass == EpollSocketChannel.class;
     }
 
     /**
@@ -71,4 +239,66 @@ public class ConnectionFactory {
         conn.connect();
         return conn;
     }
+
+    /**
+     * Create and start a connection to the best node of a GoshawkDB cluster. Connections made by
+     * this factory measure the round trip time of each transaction, so nodes are tried fastest
+     * first. Nodes which have not been measured yet are tried before measured ones so that they
+     * get measured, and nodes which recently failed to accept a connection are tried last.
+     *
+     * @param certs The certificates to use for mutual authentication
+     * @param hosts The hosts to connect to (host name or IP address). Each can be in host:port
+     *              format. They must all be part of the same cluster.
+     * @return a new connection
+     * @throws InterruptedException if an interruption occurs during connection
+     */
+    public Connection connectToCluster(final Certs certs, final String... hosts) throws InterruptedException {
+        if (hosts.length == 0) {
+            throw new IllegalArgumentException("No hosts supplied");
+        }
+        Exception failure = null;
+        for (String host : latencies.rank(hosts)) {
+            try {
+                final Connection conn = connect(certs, host);
+                if (conn.isConnected()) {
+                    return conn;
+                }
+                conn.close();
+            } catch (final InterruptedException e) {
+                throw e;
+            } catch (final Exception e) {
+                failure = e;
+            }
+        }
+        throw new IllegalStateException("Unable to connect to any of " + Arrays.toString(hosts), failure);
+    }
+
+    /**
+     * Returns the current estimate of the round trip time for transactions submitted to the given
+     * host, or 0 if no transactions have been run against it by connections from this factory.
+     *
+     * @param host The host (host name or IP address). This can be in host:port format.
+     * @param unit The unit of the result
+     * @return the estimated round trip time
+     */
+    public long roundTripTime(final String host, final TimeUnit unit) {
+        return unit.convert(latencies.roundTrip(HostLatencies.key(host)), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Create a pool of connections to a GoshawkDB cluster. The pool starts with minSize
+     * connections and opens more, up to maxSize, as transactions start to queue. New connections
+     * are made to the fastest healthy host, as for {@link #connectToCluster(Certs, String...)}.
+     *
+     * @param certs   The certificates to use for mutual authentication
+     * @param minSize The minimum number of connections in the pool
+     * @param maxSize The maximum number of connections in the pool
+     * @param hosts   The hosts to connect to (host name or IP address). Each can be in host:port
+     *                format. They must all be part of the same cluster.
+     * @return a new connection pool
+     * @throws InterruptedException if an interruption occurs during connection
+     */
+    public ConnectionPool connectPool(final Certs certs, final int minSize, final int maxSize, final String... hosts) throws InterruptedException {
+        return new ConnectionPool(this, certs, minSize, maxSize, hosts);
+    }
 }
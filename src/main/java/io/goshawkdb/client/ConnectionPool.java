@@ -0,0 +1,340 @@
+package io.goshawkdb.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of {@link Connection}s to a GoshawkDB cluster, created through {@link
+ * ConnectionFactory#connectPool(Certs, int, int, String...)}. Transactions run through the pool are
+ * spread across its connections. Each thread is pinned to one connection so that the objects it
+ * works with stay in that connection's cache; a thread is only moved if its connection is
+ * saturated, disconnected, or removed from the pool. As {@link GoshawkObjRef}s are linked to
+ * connections, they should not be carried from one pooled transaction to the next: navigate from the
+ * roots within each transaction instead.
+ *
+ * New connections are made to the fastest healthy host, and asynchronous transactions are routed to
+ * the connection with the lowest expected latency given its round trip time and load.
+ *
+ * The pool measures how long transactions wait for a connection with spare capacity. If that
+ * delay grows, a new connection is opened (up to the maximum size); if the pool has been
+ * under-used for a while, a connection is drained and closed (down to the minimum size).
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    // The number of transactions a connection may have in flight before further transactions
+    // queue for it.
+    static final int MAX_IN_FLIGHT = 16;
+    static final long GROW_QUEUE_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long SHRINK_QUEUE_DELAY = TimeUnit.MICROSECONDS.toNanos(10);
+    static final long RESIZE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    // After a failure to open a connection, no more are attempted for a backoff period, which
+    // doubles with each consecutive failure.
+    static final long MIN_GROW_BACKOFF = TimeUnit.MILLISECONDS.toNanos(100);
+    static final long MAX_GROW_BACKOFF = HostLatencies.UNHEALTHY_PERIOD;
+
+    private static final class Member {
+        final Connection conn;
+        int inFlight = 0;
+        boolean retiring = false;
+
+        Member(final Connection c) {
+            conn = c;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final ConnectionFactory factory;
+    private final Certs certs;
+    private final String[] hosts;
+    private final int minSize;
+    private final int maxSize;
+    private final List<Member> members = new ArrayList<>();
+    private final ThreadLocal<Member> affinity = new ThreadLocal<>();
+    // The member running this thread's pooled transaction, if any, which may have been borrowed
+    // rather than be the one the thread is pinned to. Transactions nested within it must use it.
+    private final ThreadLocal<Member> current = new ThreadLocal<>();
+
+    private int growing = 0;
+    private long queueDelay = 0;
+    private long lastResize;
+    private boolean closed = false;
+    // Why the last attempt to open a connection failed, and when we may try again; null once an
+    // attempt succeeds.
+    private Exception growFailure = null;
+    private long growBackoff = 0;
+    private long growRetryAt;
+
+    ConnectionPool(final ConnectionFactory cf, final Certs c, final int min, final int max, final String[] hs) throws InterruptedException {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid pool size: min " + min + ", max " + max);
+        } else if (hs.length == 0) {
+            throw new IllegalArgumentException("No hosts supplied");
+        }
+        factory = cf;
+        certs = c;
+        hosts = hs.clone();
+        minSize = min;
+        maxSize = max;
+        try {
+            for (int idx = 0; idx < minSize; idx++) {
+                final Connection conn = factory.connect(certs, nextHost());
+                synchronized (lock) {
+                    members.add(new Member(conn));
+                }
+            }
+        } catch (final InterruptedException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        lastResize = System.nanoTime();
+    }
+
+    /**
+     * Run a transaction on one of the pool's connections. Blocks whilst every connection has as
+     * many transactions in flight as it permits. Transactions nested within a pooled transaction
+     * run on the same connection as their parent. If the pool has no connections and cannot open
+     * one, this fails with an {@link IllegalStateException} whose cause is the failure to connect.
+     *
+     * @param fun The transaction function to run. This will be automatically restarted as many
+     *            times as necessary until the transaction either commits or chooses to abort.
+     * @param <R> The type of the result of the transaction function.
+     * @return The result of the transaction function.
+     * @throws InterruptedException if an interruption occurs whilst waiting for a connection.
+     */
+    public <R> TransactionResult<R> runTransaction(final TransactionFunction<R> fun) throws InterruptedException {
+        final Member outer = current.get();
+        if (outer != null) {
+            return outer.conn.runTransaction(fun);
+        }
+        final Member member = acquire();
+        current.set(member);
+        try {
+            return member.conn.runTransaction(fun);
+        } finally {
+            current.remove();
+            release(member);
+        }
+    }
+
+    /**
+     * Run a transaction asynchronously on one of the pool's connections. This never blocks: the
+     * transaction is given to the least loaded connection even if it is saturated. See {@link
+     * Connection#runTransactionAsync(TransactionFunction)}.
+     *
+     * @param fun The transaction function to run.
+     * @param <R> The type of the result of the transaction function.
+     * @return A future which completes with the result of the transaction function, or completes
+     * exceptionally if the pool has no connections.
+     */
+    public <R> CompletableFuture<TransactionResult<R>> runTransactionAsync(final TransactionFunction<R> fun) {
+        final Member member;
+        synchronized (lock) {
+            member = closed ? null : leastLoaded(false);
+            if (member == null) {
+                final CompletableFuture<TransactionResult<R>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(closed ? new IllegalStateException("Connection pool is closed") : noConnections());
+                return failed;
+            }
+            member.inFlight++;
+        }
+        try {
+            return member.conn.runTransactionAsync(fun).whenComplete((result, t) -> release(member));
+        } catch (final RuntimeException e) {
+            release(member);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of connections currently in the pool.
+     */
+    public int size() {
+        synchronized (lock) {
+            return members.size();
+        }
+    }
+
+    /**
+     * Close the pool and all of its connections. Blocks until the connections have been closed.
+     *
+     * @throws InterruptedException if an interruption occurs whilst we're waiting for the
+     *                              connections to close.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        final List<Member> toClose;
+        synchronized (lock) {
+            closed = true;
+            toClose = new ArrayList<>(members);
+            members.clear();
+            lock.notifyAll();
+        }
+        for (Member member : toClose) {
+            member.conn.close();
+        }
+    }
+
+    private Member acquire() throws InterruptedException {
+        final long start = System.nanoTime();
+        Member member;
+        synchronized (lock) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("Connection pool is closed");
+                }
+                member = affinity.get();
+                if (member == null || member.retiring || !members.contains(member)) {
+                    member = leastLoaded(false);
+                    affinity.set(member);
+                }
+                if (member == null || member.inFlight >= MAX_IN_FLIGHT) {
+                    // Borrow a different connection rather than wait, but stay pinned to ours.
+                    member = leastLoaded(true);
+                }
+                if (member != null) {
+                    member.inFlight++;
+                    break;
+                }
+                if (members.isEmpty() && growing == 0 && !grow()) {
+                    throw noConnections();
+                }
+                lock.wait();
+            }
+            queueDelay += (System.nanoTime() - start - queueDelay) / 8;
+            if (queueDelay > GROW_QUEUE_DELAY && members.size() + growing < maxSize) {
+                grow();
+            }
+        }
+        return member;
+    }
+
+    private void release(final Member member) {
+        Connection toClose = null;
+        synchronized (lock) {
+            member.inFlight--;
+            if (member.retiring) {
+                if (member.inFlight == 0) {
+                    toClose = member.conn;
+                }
+            } else {
+                maybeShrink();
+            }
+            lock.notifyAll();
+        }
+        if (toClose != null) {
+            toClose.startClose();
+        }
+    }
+
+    // Must be called with lock held.
+    private IllegalStateException noConnections() {
+        return new IllegalStateException("No connections available", growFailure);
+    }
+
+    // Must be called with lock held.
+    private Member leastLoaded(final boolean withCapacity) {
+        Member best = null;
+        for (int idx = members.size() - 1; idx >= 0; idx--) {
+            final Member member = members.get(idx);
+            if (!member.conn.isConnected()) {
+                members.remove(idx);
+                if (member.inFlight == 0) {
+                    member.conn.startClose();
+                } else {
+                    member.retiring = true;
+                }
+            } else if ((!withCapacity || member.inFlight < MAX_IN_FLIGHT) && (best == null || cost(member) < cost(best))) {
+                best = member;
+            }
+        }
+        if (members.size() + growing < minSize) {
+            grow();
+        }
+        return best;
+    }
+
+    // The expected latency of a transaction submitted to the member now. Unmeasured connections
+    // count as fast so that they get measured.
+    private static long cost(final Member member) {
+        return (member.inFlight + 1) * Math.max(1, member.conn.roundTripTime());
+    }
+
+    // Must be called with lock held.
+    private void maybeShrink() {
+        final int size = members.size();
+        final long now = System.nanoTime();
+        if (size <= minSize || growing != 0 || queueDelay > SHRINK_QUEUE_DELAY || now - lastResize < RESIZE_INTERVAL) {
+            return;
+        }
+        int inFlight = 0;
+        Member idlest = null;
+        for (Member member : members) {
+            inFlight += member.inFlight;
+            if (idlest == null || member.inFlight < idlest.inFlight) {
+                idlest = member;
+            }
+        }
+        if (inFlight * 2 > (size - 1) * MAX_IN_FLIGHT) {
+            return;
+        }
+        lastResize = now;
+        members.remove(idlest);
+        idlest.retiring = true;
+        if (idlest.inFlight == 0) {
+            idlest.conn.startClose();
+        }
+    }
+
+    // Must be called with lock held. Connecting blocks, so it's done on a separate thread. Returns
+    // false, without trying, if we are backing off after a failure to connect.
+    private boolean grow() {
+        if (growFailure != null && System.nanoTime() - growRetryAt < 0) {
+            return false;
+        }
+        growing++;
+        lastResize = System.nanoTime();
+        final String host = nextHost();
+        final Thread t = new Thread(() -> {
+            Connection conn = null;
+            Exception failure = null;
+            try {
+                conn = factory.connect(certs, host);
+            } catch (final Exception e) {
+                failure = e;
+            }
+            boolean closeConn = false;
+            synchronized (lock) {
+                growing--;
+                if (conn == null) {
+                    // Reported to the callers which find the pool empty until we try again.
+                    growFailure = failure;
+                    growBackoff = growBackoff == 0 ? MIN_GROW_BACKOFF : Math.min(growBackoff * 2, MAX_GROW_BACKOFF);
+                    growRetryAt = System.nanoTime() + growBackoff;
+                } else {
+                    growFailure = null;
+                    growBackoff = 0;
+                    if (closed) {
+                        closeConn = true;
+                    } else {
+                        members.add(new Member(conn));
+                    }
+                }
+                lastResize = System.nanoTime();
+                lock.notifyAll();
+            }
+            if (closeConn) {
+                conn.startClose();
+            }
+        }, "GoshawkDB connection pool");
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    // The fastest healthy host, according to the factory's measurements.
+    private String nextHost() {
+        return factory.latencies.rank(hosts)[0];
+    }
+}
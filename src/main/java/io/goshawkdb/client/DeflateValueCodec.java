@@ -0,0 +1,70 @@
+package io.goshawkdb.client;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class DeflateValueCodec implements ValueCodec {
+
+    static final int ID = 1;
+    // DEFLATE can't expand its input by more than this, so a longer raw length means corruption.
+    static final int MAX_RATIO = 1032;
+
+    // Deflaters hold native memory, so they're reused per thread rather than created per value.
+    private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public ByteBuffer compress(final ByteBuffer src) {
+        final int len = src.remaining();
+        final Deflater d = deflater.get();
+        d.reset();
+        if (src.hasArray()) {
+            d.setInput(src.array(), src.arrayOffset() + src.position(), len);
+        } else {
+            final byte[] in = new byte[len];
+            src.duplicate().get(in);
+            d.setInput(in);
+        }
+        d.finish();
+        // Anything that doesn't fit in the original's size isn't worth having.
+        final byte[] out = new byte[len];
+        final int written = d.deflate(out);
+        if (!d.finished()) {
+            return null;
+        }
+        return ByteBuffer.wrap(out, 0, written);
+    }
+
+    @Override
+    public ByteBuffer decompress(final ByteBuffer src, final int rawLength) {
+        final Inflater i = inflater.get();
+        i.reset();
+        final int len = src.remaining();
+        if (rawLength > (long) len * MAX_RATIO) {
+            throw new IllegalStateException("Corrupt deflated value");
+        }
+        if (src.hasArray()) {
+            i.setInput(src.array(), src.arrayOffset() + src.position(), len);
+        } else {
+            final byte[] in = new byte[len];
+            src.duplicate().get(in);
+            i.setInput(in);
+        }
+        final byte[] out = new byte[rawLength];
+        try {
+            if (i.inflate(out) != rawLength) {
+                throw new IllegalStateException("Corrupt deflated value");
+            }
+        } catch (final DataFormatException e) {
+            throw new IllegalStateException("Corrupt deflated value", e);
+        }
+        return ByteBuffer.wrap(out);
+    }
+}
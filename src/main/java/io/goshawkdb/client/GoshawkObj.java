@@ -1,15 +1,6 @@
 package io.goshawkdb.client;
 
-import org.capnproto.MessageBuilder;
-import org.capnproto.StructList;
-
 import java.nio.ByteBuffer;
-import java.util.List;
-
-import io.goshawkdb.client.capnp.ConnectionCap;
-import io.goshawkdb.client.capnp.TransactionCap;
-
-import static io.goshawkdb.client.ConnectionFactory.VERSION_ZERO;
 
 final class GoshawkObj {
 
@@ -81,32 +72,59 @@ final class GoshawkObj {
         if (state.create || state.read || (state.write && !ignoreWritten)) {
             return;
         }
-        Cache.ValueRef valueRef = state.transaction.cache.get(id);
-        if (valueRef == null || valueRef.version == null) {
-            final List<VarUUId> modifiedVars = loadVar(id, conn);
-            if (state.transaction.varsUpdated(modifiedVars)) {
-                throw TransactionRestartRequiredException.e;
-            }
-            valueRef = state.transaction.cache.get(id);
-            if (valueRef == null || valueRef.version == null) {
-                throw new IllegalStateException("Loading " + id + " failed to find value / update cache");
+        // Loaded whilst an async txn waited: neither a hit nor another miss.
+        Cache.ValueRef valueRef = state.transaction.takeLoaded(id);
+        if (valueRef == null) {
+            valueRef = state.transaction.cache.read(id);
+            if (valueRef == null) {
+                state.transaction.cache.recordMiss();
+                if (state.transaction.executor != null) {
+                    throw state.transaction.awaitAsync(conn.loadVarAsync(id));
+                }
+                final WaitStrategy waitStrategy = state.transaction.waitStrategy;
+                while (valueRef == null) {
+                    final TxnSubmissionResult loaded = conn.loadVar(id, waitStrategy);
+                    if (state.transaction.varsUpdated(loaded.modifiedVars)) {
+                        if (loaded.loaded != null && loaded.loaded.owner != null) {
+                            loaded.loaded.owner.release();
+                        }
+                        throw TransactionRestartRequiredException.e;
+                    }
+                    // Taken as the outcome was applied, so later messages can't have evicted it.
+                    // Null only if the server didn't send it after all, so try again.
+                    valueRef = loaded.loaded;
+                }
+            } else {
+                state.transaction.cache.recordHit();
             }
         }
         state.read = true;
         state.curVersion = valueRef.version;
-        if (!state.write) {
-            state.curValue = valueRef.value.duplicate();
+        if (state.write) {
+            if (valueRef.owner != null) {
+                valueRef.owner.release();
+            }
+        } else {
+            final ByteBuffer value = conn.valueCodecs.decode(valueRef.value);
             if (state.curValueRef != null) {
                 state.curValueRef.release();
             }
-            state.curValueRef = valueRef.reader;
-            if (state.curValueRef != null) {
-                state.curValueRef.retain();
+            if (value == valueRef.value) {
+                state.curValue = value.duplicate();
+                // read has already retained the owner on our behalf
+                state.curValueRef = valueRef.owner;
+            } else {
+                // Decoded into a buffer of its own, so there's no need to hold onto the message.
+                state.curValue = value;
+                state.curValueRef = null;
+                if (valueRef.owner != null) {
+                    valueRef.owner.release();
+                }
             }
             final GoshawkObjRef[] refs = new GoshawkObjRef[valueRef.references.length];
             int idx = 0;
             for (Cache.RefCap rc : valueRef.references) {
-                final GoshawkObj obj = state.transaction.getObject(rc.vUUId, true);
+                final GoshawkObj obj = state.transaction.getObject(rc.vUUId, true, rc.cap);
                 refs[idx] = new GoshawkObjRef(obj, rc.cap);
                 idx++;
             }
@@ -134,25 +152,13 @@ final class GoshawkObj {
         }
     }
 
-    private static List<VarUUId> loadVar(final VarUUId vUUId, final Connection conn) {
-        final MessageBuilder msg = new MessageBuilder();
-        final ConnectionCap.ClientMessage.Builder builder = msg.initRoot(ConnectionCap.ClientMessage.factory);
-        final TransactionCap.ClientTxn.Builder cTxn = builder.initClientTxnSubmission();
-        cTxn.setRetry(false);
-        final StructList.Builder<TransactionCap.ClientAction.Builder> actions = cTxn.initActions(1);
-        final TransactionCap.ClientAction.Builder action = actions.get(0);
-        action.setVarId(vUUId.id);
-        action.initRead().setVersion(VERSION_ZERO.id);
-        return conn.submitTransaction(msg, cTxn).modifiedVars;
-    }
-
     static ByteBuffer cloneByteBuffer(final ByteBuffer buf) {
         if (buf == null) {
             return ByteBuffer.allocate(0);
         }
-        final ByteBuffer clone = (buf.isDirect()) ?
-                ByteBuffer.allocateDirect(buf.capacity()) :
-                ByteBuffer.allocate(buf.capacity());
+        // Always on the heap: a direct clone would cost a native allocation for every read of a
+        // value that is held off-heap or in a network buffer.
+        final ByteBuffer clone = ByteBuffer.allocate(buf.capacity());
         final ByteBuffer readOnlyCopy = buf.asReadOnlyBuffer();
         readOnlyCopy.rewind();
         clone.put(readOnlyCopy);
@@ -12,8 +12,10 @@ final class HeartbeatHandler extends ChannelInboundHandlerAdapter {
     // Can't use SimpleChannelInboundHandler because IdleStateEvent doesn't arrive via channelRead
 
     private final MessageBuilder heartbeat = new MessageBuilder();
+    private final WriteBatcher writer;
 
-    HeartbeatHandler() {
+    HeartbeatHandler(final WriteBatcher w) {
+        writer = w;
         heartbeat.initRoot(ConnectionCap.ClientMessage.factory).setHeartbeat(null);
     }
 
@@ -27,7 +29,8 @@ final class HeartbeatHandler extends ChannelInboundHandlerAdapter {
                     ctx.channel().close();
                     return;
                 case WRITER_IDLE:
-                    ctx.channel().writeAndFlush(heartbeat);
+                    // Shares a flush with any txns being submitted.
+                    writer.write(heartbeat);
                     return;
                 default:
                     throw new IllegalStateException("Unexpected IdleStateEvent state: " + state);
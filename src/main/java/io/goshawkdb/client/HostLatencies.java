@@ -0,0 +1,84 @@
+package io.goshawkdb.client;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Per-host round trip time estimates and health, shared by all connections from a factory, used to
+// choose which node of a cluster to connect to. Hosts are keyed by "host:port".
+final class HostLatencies {
+
+    // How long a host that we failed to connect to is avoided for.
+    static final long UNHEALTHY_PERIOD = TimeUnit.SECONDS.toNanos(10);
+
+    private static final class Host {
+        // EWMA of txn round trip times in nanoseconds; 0 until the first sample.
+        volatile long roundTrip = 0;
+        // When we last failed to connect; 0 if the host is healthy.
+        volatile long failedAt = 0;
+    }
+
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    static String key(final String host) {
+        final int idx = host.lastIndexOf(':');
+        if (idx != -1 && host.substring(idx + 1).matches("^\\d+$")) {
+            return host;
+        }
+        return key(host, ConnectionFactory.DEFAULT_PORT);
+    }
+
+    static String key(final String host, final int port) {
+        return host + ":" + port;
+    }
+
+    private Host host(final String key) {
+        return hosts.computeIfAbsent(key, k -> new Host());
+    }
+
+    // Races between samples only lose a sample, which the EWMA tolerates.
+    void recordRoundTrip(final String key, final long nanos) {
+        final Host h = host(key);
+        final long rt = h.roundTrip;
+        h.roundTrip = rt == 0 ? nanos : rt + (nanos - rt) / 8;
+    }
+
+    void recordFailure(final String key) {
+        host(key).failedAt = System.nanoTime() | 1;
+    }
+
+    void recordSuccess(final String key) {
+        host(key).failedAt = 0;
+    }
+
+    long roundTrip(final String key) {
+        final Host h = hosts.get(key);
+        return h == null ? 0 : h.roundTrip;
+    }
+
+    boolean isHealthy(final String key) {
+        final Host h = hosts.get(key);
+        if (h == null) {
+            return true;
+        }
+        final long failedAt = h.failedAt;
+        return failedAt == 0 || System.nanoTime() - failedAt > UNHEALTHY_PERIOD;
+    }
+
+    // Orders the hosts best first: healthy hosts before unhealthy ones, then hosts we have no
+    // measurement for (so that they get measured), then by round trip time.
+    String[] rank(final String... hs) {
+        final List<String> healthy = new ArrayList<>(hs.length);
+        final List<String> unhealthy = new ArrayList<>();
+        for (String h : hs) {
+            (isHealthy(key(h)) ? healthy : unhealthy).add(h);
+        }
+        final Comparator<String> byRoundTrip = Comparator.comparingLong(h -> roundTrip(key(h)));
+        healthy.sort(byRoundTrip);
+        unhealthy.sort(byRoundTrip);
+        healthy.addAll(unhealthy);
+        return healthy.toArray(new String[healthy.size()]);
+    }
+}
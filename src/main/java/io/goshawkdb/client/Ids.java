@@ -0,0 +1,66 @@
+package io.goshawkdb.client;
+
+import org.apache.commons.codec.binary.Hex;
+import org.capnproto.Data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static io.goshawkdb.client.ConnectionFactory.KEY_LEN;
+
+// Helpers for VarUUIds and TxnIds, which hold their KEY_LEN bytes as three big-endian words: two
+// longs and an int.
+final class Ids {
+
+    private Ids() {
+    }
+
+    static void checkLength(final Data.Reader data) {
+        if (data.size < KEY_LEN) {
+            throw new IllegalArgumentException("Id too short: " + data.size + " bytes");
+        }
+    }
+
+    // Reads the words straight out of the message, without copying.
+    static long word0(final Data.Reader data) {
+        return getLong(data.buffer, data.offset);
+    }
+
+    static long word1(final Data.Reader data) {
+        return getLong(data.buffer, data.offset + 8);
+    }
+
+    static int word2(final Data.Reader data) {
+        return getInt(data.buffer, data.offset + 16);
+    }
+
+    static boolean matches(final Data.Reader data, final long w0, final long w1, final int w2) {
+        return data.size >= KEY_LEN && word0(data) == w0 && word1(data) == w1 && word2(data) == w2;
+    }
+
+    static long getLong(final ByteBuffer buf, final int idx) {
+        final long l = buf.getLong(idx);
+        return buf.order() == ByteOrder.BIG_ENDIAN ? l : Long.reverseBytes(l);
+    }
+
+    static int getInt(final ByteBuffer buf, final int idx) {
+        final int i = buf.getInt(idx);
+        return buf.order() == ByteOrder.BIG_ENDIAN ? i : Integer.reverseBytes(i);
+    }
+
+    static int hash(final long w0, final long w1, final int w2) {
+        long h = w0 * 0x9E3779B97F4A7C15L + w1;
+        h = h * 0x9E3779B97F4A7C15L + w2;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static byte[] toBytes(final long w0, final long w1, final int w2) {
+        return ByteBuffer.allocate(KEY_LEN).putLong(w0).putLong(w1).putInt(w2).array();
+    }
+
+    static String toHex(final long w0, final long w1, final int w2) {
+        return Hex.encodeHexString(toBytes(w0, w1, w2));
+    }
+}
@@ -17,6 +17,13 @@ final class MessageReaderRefCount implements ByteBufHolder {
         buf.retain();
     }
 
+    // The buffer whose memory is kept alive whilst this message is retained. buf is usually a slice
+    // of a larger buffer, such as the decoder's cumulation buffer.
+    ByteBuf backingBuffer() {
+        final ByteBuf unwrapped = buf.unwrap();
+        return unwrapped == null ? buf : unwrapped;
+    }
+
     @Override
     public ByteBuf content() {
         return buf;
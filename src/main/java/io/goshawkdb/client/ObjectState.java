@@ -2,6 +2,8 @@ package io.goshawkdb.client;
 
 import java.nio.ByteBuffer;
 
+import io.netty.util.ReferenceCounted;
+
 import static io.goshawkdb.client.GoshawkObj.cloneByteBuffer;
 
 final class ObjectState {
@@ -12,7 +14,7 @@ final class ObjectState {
     TransactionImpl<?> transaction = null;
     TxnId curVersion = null;
     ByteBuffer curValue = null;
-    MessageReaderRefCount curValueRef = null;
+    ReferenceCounted curValueRef = null;
     GoshawkObjRef[] curObjectRefs = null;
 
     final boolean create;
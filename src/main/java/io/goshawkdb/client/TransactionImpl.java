@@ -1,17 +1,14 @@
 package io.goshawkdb.client;
 
-import org.capnproto.Data;
-import org.capnproto.MessageBuilder;
-import org.capnproto.StructList;
-
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
-import io.goshawkdb.client.capnp.ConnectionCap;
 import io.goshawkdb.client.capnp.TransactionCap;
 
 import static io.goshawkdb.client.ConnectionFactory.VERSION_ZERO;
@@ -19,20 +16,37 @@ import static io.goshawkdb.client.ConnectionFactory.VERSION_ZERO;
 final class TransactionImpl<R> implements Transaction {
 
     final Cache cache;
-    private final HashMap<VarUUId, GoshawkObj> objs = new HashMap<>();
+    private final VarUUIdMap<GoshawkObj> objs = new VarUUIdMap<>();
     private final TransactionFunction<R> fun;
     private final Connection conn;
     private final Map<String, Cache.RefCap> roots;
     private final TransactionImpl<?> parent;
+    // Non-null iff this transaction, or its top-level ancestor, was started by runTransactionAsync.
+    final Executor executor;
+    final WaitStrategy waitStrategy;
 
     boolean resetInProgress = false;
+    // The server response the top-level async transaction is waiting on before it can restart.
+    private CompletableFuture<?> pending = null;
+    // A value loaded whilst the top-level async transaction waited, handed to the next attempt so
+    // that it need not be found in the cache, from which it may have been evicted since.
+    private VarUUId loadedId = null;
+    private Cache.ValueRef loaded = null;
 
-    TransactionImpl(final TransactionFunction<R> fun, final Connection conn, Cache cache, final Map<String, Cache.RefCap> roots, final TransactionImpl<?> parent) {
+    TransactionImpl(final TransactionFunction<R> fun, final Connection conn, Cache cache, final Map<String, Cache.RefCap> roots, final TransactionImpl<?> parent, final Executor executor, final WaitStrategy waitStrategy) {
         this.fun = fun;
         this.conn = conn;
         this.cache = cache;
         this.roots = roots;
         this.parent = parent;
+        this.executor = parent == null ? executor : parent.executor;
+        if (waitStrategy != null) {
+            this.waitStrategy = waitStrategy;
+        } else if (parent != null) {
+            this.waitStrategy = parent.waitStrategy;
+        } else {
+            this.waitStrategy = conn.getWaitStrategy();
+        }
     }
 
     TransactionResult<R> run() {
@@ -76,12 +90,127 @@ final class TransactionImpl<R> implements Transaction {
         }
     }
 
+    // Runs one attempt of a top-level async transaction. Rather than blocking on the server, each
+    // attempt either completes future or arranges for runAsync to be called again on the executor.
+    void runAsync(final CompletableFuture<TransactionResult<R>> future) {
+        try {
+            while (true) {
+                resetInProgress = false;
+                pending = null;
+                resetObjects();
+                R result = null;
+                final TransactionImpl<?> oldTxn = conn.enterTxn(this);
+                try {
+                    result = fun.apply(this);
+                } catch (final TransactionRestartRequiredException e) {
+                } catch (final Exception e) {
+                    resetObjects();
+                    future.complete(new TransactionResult<>(null, null, e));
+                    return;
+                } finally {
+                    conn.exitTxn(oldTxn);
+                    // Only the attempt straight after the load may use it.
+                    releaseLoaded();
+                }
+                if (resetInProgress) {
+                    if (pending == null) {
+                        continue;
+                    }
+                    pending.whenCompleteAsync((final Object o, final Throwable t) -> {
+                        if (t == null) {
+                            if (o instanceof TxnSubmissionResult && ((TxnSubmissionResult) o).loaded != null) {
+                                loadedId = ((TxnSubmissionResult) o).loading;
+                                loaded = ((TxnSubmissionResult) o).loaded;
+                            }
+                            runAsync(future);
+                        } else {
+                            resetObjects();
+                            future.completeExceptionally(t);
+                        }
+                    }, executor);
+                    return;
+                }
+                final CompletableFuture<TxnSubmissionResult> submitted = submitToServer(conn::submitTransactionAsync);
+                if (submitted == null) {
+                    resetObjects();
+                    future.complete(new TransactionResult<>(result, VERSION_ZERO, null));
+                    return;
+                }
+                final R finalResult = result;
+                submitted.whenCompleteAsync((final TxnSubmissionResult sub, final Throwable t) -> {
+                    if (t == null && sub.outcome == TransactionCap.ClientTxnOutcome.Which.ABORT) {
+                        runAsync(future);
+                        return;
+                    }
+                    resetObjects();
+                    if (t == null) {
+                        future.complete(new TransactionResult<>(finalResult, sub.finalTxnId, null));
+                    } else {
+                        future.completeExceptionally(t);
+                    }
+                }, executor);
+                return;
+            }
+        } catch (final Exception e) {
+            resetObjects();
+            future.completeExceptionally(e);
+        }
+    }
+
+    // Returns the value loaded for vUUId whilst the top-level async transaction waited, if any.
+    // The caller takes over its owner.
+    Cache.ValueRef takeLoaded(final VarUUId vUUId) {
+        TransactionImpl<?> top = this;
+        while (top.parent != null) {
+            top = top.parent;
+        }
+        final Cache.ValueRef vr = top.loaded;
+        if (vr == null || !top.loadedId.equals(vUUId)) {
+            return null;
+        }
+        top.loaded = null;
+        top.loadedId = null;
+        return vr;
+    }
+
+    private void releaseLoaded() {
+        if (loaded != null) {
+            if (loaded.owner != null) {
+                loaded.owner.release();
+            }
+            loaded = null;
+            loadedId = null;
+        }
+    }
+
+    // Records that the top-level async transaction must wait for future before restarting, and
+    // marks every transaction in the chain for restart. Returns the exception to throw.
+    TransactionRestartRequiredException awaitAsync(final CompletableFuture<?> future) {
+        TransactionImpl<?> ancestor = this;
+        while (true) {
+            ancestor.resetInProgress = true;
+            if (ancestor.parent == null) {
+                ancestor.pending = future;
+                return TransactionRestartRequiredException.e;
+            }
+            ancestor = ancestor.parent;
+        }
+    }
+
     @Override
     public void retry() {
         if (resetInProgress) {
             throw TransactionRestartRequiredException.e;
         }
-        submitRetryTransaction();
+        if (executor == null) {
+            // A retry may wait indefinitely, so never spin for it.
+            submitRetryTransaction(frame -> conn.submitTransaction(frame, WaitStrategy.Park));
+        } else {
+            final CompletableFuture<TxnSubmissionResult> future = submitRetryTransaction(conn::submitTransactionAsync);
+            if (future != null) {
+                throw awaitAsync(future);
+            }
+        }
         throw TransactionRestartRequiredException.e;
     }
 
@@ -89,7 +218,7 @@ final class TransactionImpl<R> implements Transaction {
     public Map<String, GoshawkObjRef> getRoots() {
         final Map<String, GoshawkObjRef> rootObjects = new HashMap<>();
         roots.forEach((name, rc) -> {
-            final GoshawkObj obj = getObject(rc.vUUId, true);
+            final GoshawkObj obj = getObject(rc.vUUId, true, rc.cap);
             rootObjects.put(name, new GoshawkObjRef(obj, rc.cap));
         });
         return rootObjects;
@@ -111,16 +240,18 @@ final class TransactionImpl<R> implements Transaction {
         if (resetInProgress) {
             throw TransactionRestartRequiredException.e;
         }
-        objRef.obj = getObject(objRef.obj.id, true);
+        objRef.obj = getObject(objRef.obj.id, true, objRef.obj.objRef.cap);
         return objRef;
     }
 
-    GoshawkObj getObject(final VarUUId vUUId, final boolean addToTxn) {
+    // An object new to the txn gets the capability the cache has discovered on it, or failing that
+    // known, that of the reference it was reached through: the cache may have forgotten it.
+    GoshawkObj getObject(final VarUUId vUUId, final boolean addToTxn, final Capability known) {
         GoshawkObj obj = objs.get(vUUId);
         if (obj != null) {
             return obj;
         } else if (parent != null) {
-            obj = parent.getObject(vUUId, false);
+            obj = parent.getObject(vUUId, false, null);
             if (obj != null) {
                 if (addToTxn) {
                     obj.state = new ObjectState(obj.state, this);
@@ -130,11 +261,12 @@ final class TransactionImpl<R> implements Transaction {
             }
         }
         if (addToTxn) {
-            final Cache.ValueRef vr = cache.get(vUUId);
-            if (vr == null) {
+            final Capability discovered = cache.getCapability(vUUId);
+            final Capability cap = discovered == null ? known : discovered;
+            if (cap == null) {
                 throw new IllegalArgumentException("Attempt to dereference GoshawkObjRef to unknown GoshawkObj: " + vUUId);
             }
-            obj = new GoshawkObj(vUUId, vr.cap, conn);
+            obj = new GoshawkObj(vUUId, cap, conn);
             objs.put(vUUId, obj);
             obj.state = new ObjectState(obj, this);
             return obj;
@@ -162,7 +294,7 @@ final class TransactionImpl<R> implements Transaction {
     }
 
     private void resetObjects() {
-        objs.forEach((final VarUUId vUUId, final GoshawkObj obj) -> {
+        objs.forEach((final GoshawkObj obj) -> {
             if (obj.state.transaction == this) {
                 if (obj.state.curValueRef != null) {
                     obj.state.curValueRef.release();
@@ -174,8 +306,8 @@ final class TransactionImpl<R> implements Transaction {
     }
 
     private void moveObjsToParent() {
-        final HashMap<VarUUId, GoshawkObj> pObjs = parent.objs;
-        objs.forEach((final VarUUId vUUId, final GoshawkObj obj) -> {
+        final VarUUIdMap<GoshawkObj> pObjs = parent.objs;
+        objs.forEach((final GoshawkObj obj) -> {
             final ObjectState state = obj.state;
             if (state.transaction == this) {
                 state.transaction = parent;
@@ -185,51 +317,54 @@ final class TransactionImpl<R> implements Transaction {
                     }
                     state.parent = state.parent.parent;
                 }
-                pObjs.putIfAbsent(vUUId, obj);
+                pObjs.putIfAbsent(obj.id, obj);
             }
         });
     }
 
-    private void submitRetryTransaction() {
-        final HashMap<VarUUId, ObjectState> reads = new HashMap<>();
+    private <T> T submitRetryTransaction(final Function<MessageReaderRefCount, T> submitter) {
+        final VarUUIdMap<ObjectState> reads = new VarUUIdMap<>();
         for (TransactionImpl<?> ancestor = this; ancestor != null; ancestor = ancestor.parent) {
             final TransactionImpl<?> ancestorFinal = ancestor;
-            final HashMap<VarUUId, GoshawkObj> objs = ancestor.objs;
-            objs.forEach((final VarUUId vUUId, final GoshawkObj obj) -> {
+            final VarUUIdMap<GoshawkObj> objs = ancestor.objs;
+            objs.forEach((final GoshawkObj obj) -> {
                 if (obj.state.transaction == ancestorFinal && obj.state.read) {
-                    reads.putIfAbsent(vUUId, obj.state);
+                    reads.putIfAbsent(obj.id, obj.state);
                 }
             });
         }
+        T result = null;
         if (reads.size() > 0) {
-            final MessageBuilder msg = new MessageBuilder();
-            final ConnectionCap.ClientMessage.Builder builder = msg.initRoot(ConnectionCap.ClientMessage.factory);
-            final TransactionCap.ClientTxn.Builder cTxn = builder.initClientTxnSubmission();
-            cTxn.setRetry(true);
-            final StructList.Builder<TransactionCap.ClientAction.Builder> actions = cTxn.initActions(reads.size());
-            final Iterator<ObjectState> stateIt = reads.values().iterator();
-            int idx = 0;
-            while (stateIt.hasNext()) {
-                final ObjectState state = stateIt.next();
-                final TransactionCap.ClientAction.Builder action = actions.get(idx);
-                action.setVarId(state.obj.id.id);
-                action.initRead().setVersion(state.curVersion.id);
-                idx++;
-            }
-            conn.submitTransaction(msg, cTxn);
+            final int size = ClientTxnEncoder.baseSize(reads.size()) + reads.size() * ClientTxnEncoder.readSize();
+            final ClientTxnEncoder encoder = new ClientTxnEncoder(true, reads.size(), size);
+            reads.forEach((final ObjectState state) -> encoder.read(state.obj.id, state.curVersion));
+            result = submitter.apply(encoder.finish());
         }
         for (TransactionImpl<?> ancestor = this; ancestor != null; ancestor = ancestor.parent) {
             ancestor.resetInProgress = true;
         }
+        return result;
     }
 
     private TxnId submitToServer() {
+        final TxnSubmissionResult result = submitToServer(frame -> conn.submitTransaction(frame, waitStrategy));
+        if (result == null) {
+            return VERSION_ZERO;
+        } else if (result.outcome == TransactionCap.ClientTxnOutcome.Which.ABORT) {
+            return null;
+        } else {
+            return result.finalTxnId;
+        }
+    }
+
+    // Returns null if there is nothing to submit.
+    private <T> T submitToServer(final Function<MessageReaderRefCount, T> submitter) {
         final int s = objs.size();
         final ArrayList<ObjectState> reads = new ArrayList<>(s);
         final ArrayList<ObjectState> writes = new ArrayList<>(s);
         final ArrayList<ObjectState> readwrites = new ArrayList<>(s);
         final ArrayList<ObjectState> creates = new ArrayList<>(s);
-        objs.forEach((final VarUUId vUUId, final GoshawkObj obj) -> {
+        objs.forEach((final GoshawkObj obj) -> {
             final ObjectState state = obj.state;
             if (state.create) {
                 creates.add(state);
@@ -243,62 +378,38 @@ final class TransactionImpl<R> implements Transaction {
         });
         final int totalLen = reads.size() + writes.size() + readwrites.size() + creates.size();
         if (totalLen == 0) {
-            return VERSION_ZERO;
+            return null;
         }
-        final MessageBuilder msg = new MessageBuilder();
-        final ConnectionCap.ClientMessage.Builder builder = msg.initRoot(ConnectionCap.ClientMessage.factory);
-        final TransactionCap.ClientTxn.Builder cTxn = builder.initClientTxnSubmission();
-        cTxn.setRetry(false);
-        final StructList.Builder<TransactionCap.ClientAction.Builder> actions = cTxn.initActions(totalLen);
-
-        final ArrayList<ArrayList<ObjectState>> lists = new ArrayList<>(4);
-        lists.add(reads);
-        lists.add(writes);
-        lists.add(readwrites);
-        lists.add(creates);
+        // Values as they'll be sent, possibly compressed, in the order writes, readwrites, creates.
+        final ByteBuffer[] values = new ByteBuffer[totalLen - reads.size()];
         int idx = 0;
-        final Iterator<ArrayList<ObjectState>> listsIt = lists.iterator();
-        while (listsIt.hasNext()) {
-            final ArrayList<ObjectState> list = listsIt.next();
-            final Iterator<ObjectState> listIt = list.iterator();
-            while (listIt.hasNext()) {
-                final ObjectState state = listIt.next();
-                final TransactionCap.ClientAction.Builder action = actions.get(idx);
-                idx++;
-                action.setVarId(state.obj.id.id);
-                if (list == reads) {
-                    action.initRead().setVersion(state.curVersion.id);
-                } else {
-                    StructList.Builder<TransactionCap.ClientVarIdPos.Builder> refs;
-                    if (list == writes) {
-                        TransactionCap.ClientAction.Write.Builder write = action.initWrite();
-                        refs = write.initReferences(state.curObjectRefs.length);
-                        write.setValue(new Data.Reader(state.curValue, 0, state.curValue.limit()));
-                    } else if (list == readwrites) {
-                        final TransactionCap.ClientAction.Readwrite.Builder readwrite = action.initReadwrite();
-                        refs = readwrite.initReferences(state.curObjectRefs.length);
-                        readwrite.setVersion(state.curVersion.id);
-                        readwrite.setValue(new Data.Reader(state.curValue, 0, state.curValue.limit()));
-                    } else {
-                        final TransactionCap.ClientAction.Create.Builder create = action.initCreate();
-                        refs = create.initReferences(state.curObjectRefs.length);
-                        create.setValue(new Data.Reader(state.curValue, 0, state.curValue.limit()));
-                    }
-                    int idy = 0;
-                    for (GoshawkObjRef ref : state.curObjectRefs) {
-                        final TransactionCap.ClientVarIdPos.Builder refCap = refs.get(idy);
-                        ref.cap.toCapnp(refCap.initCapability());
-                        refCap.setVarId(ref.obj.id.id);
-                        idy++;
-                    }
-                }
-            }
+        int size = ClientTxnEncoder.baseSize(totalLen) + reads.size() * ClientTxnEncoder.readSize();
+        for (ObjectState state : writes) {
+            values[idx] = conn.valueCodecs.encode(state.curValue);
+            size += ClientTxnEncoder.writeSize(values[idx++], state.curObjectRefs.length);
         }
-        final TxnSubmissionResult result = conn.submitTransaction(msg, cTxn);
-        if (result.outcome.which() == TransactionCap.ClientTxnOutcome.Which.ABORT) {
-            return null;
-        } else {
-            return new TxnId(result.outcome.getFinalId().asByteBuffer());
+        for (ObjectState state : readwrites) {
+            values[idx] = conn.valueCodecs.encode(state.curValue);
+            size += ClientTxnEncoder.readwriteSize(values[idx++], state.curObjectRefs.length);
+        }
+        for (ObjectState state : creates) {
+            values[idx] = conn.valueCodecs.encode(state.curValue);
+            size += ClientTxnEncoder.createSize(values[idx++], state.curObjectRefs.length);
+        }
+        final ClientTxnEncoder encoder = new ClientTxnEncoder(false, totalLen, size);
+        for (ObjectState state : reads) {
+            encoder.read(state.obj.id, state.curVersion);
+        }
+        idx = 0;
+        for (ObjectState state : writes) {
+            encoder.write(state.obj.id, values[idx++], state.curObjectRefs);
+        }
+        for (ObjectState state : readwrites) {
+            encoder.readwrite(state.obj.id, state.curVersion, values[idx++], state.curObjectRefs);
+        }
+        for (ObjectState state : creates) {
+            encoder.create(state.obj.id, values[idx++], state.curObjectRefs);
         }
+        return submitter.apply(encoder.finish());
     }
 }
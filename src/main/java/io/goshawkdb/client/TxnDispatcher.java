@@ -0,0 +1,29 @@
+package io.goshawkdb.client;
+
+import io.goshawkdb.client.capnp.ConnectionCap;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+// Installed once the connection is running, and stays in the pipeline for the life of the
+// channel: it hands every txn outcome to the connection to be matched with its submission.
+final class TxnDispatcher extends ChannelInboundHandlerAdapter {
+
+    private final Connection conn;
+
+    TxnDispatcher(final Connection connection) {
+        conn = connection;
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        if (msg instanceof MessageReaderRefCount) {
+            final MessageReaderRefCount read = (MessageReaderRefCount) msg;
+            final ConnectionCap.ClientMessage.Reader result = read.msg.getRoot(ConnectionCap.ClientMessage.factory);
+            if (result.isClientTxnOutcome()) {
+                conn.txnOutcome(result.getClientTxnOutcome(), read);
+                return;
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+}
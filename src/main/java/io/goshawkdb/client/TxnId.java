@@ -1,11 +1,6 @@
 package io.goshawkdb.client;
 
-import org.apache.commons.codec.binary.Hex;
-
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-
-import static io.goshawkdb.client.ConnectionFactory.KEY_LEN;
+import org.capnproto.Data;
 
 /**
  * Representation of GoshawkDB Transaction Ids. Objects within GoshawkDB's object graph are
@@ -15,32 +10,50 @@ import static io.goshawkdb.client.ConnectionFactory.KEY_LEN;
  */
 public class TxnId {
 
-    final byte[] id;
+    // The id's bytes, as big-endian words. word0 is the txn counter.
+    final long word0;
+    final long word1;
+    final int word2;
+    private final int hash;
+
+    TxnId(final long w0, final long w1, final int w2) {
+        word0 = w0;
+        word1 = w1;
+        word2 = w2;
+        hash = Ids.hash(w0, w1, w2);
+    }
 
-    TxnId(final byte[] id) {
-        this.id = id;
+    TxnId(final Data.Reader data) {
+        Ids.checkLength(data);
+        word0 = Ids.word0(data);
+        word1 = Ids.word1(data);
+        word2 = Ids.word2(data);
+        hash = Ids.hash(word0, word1, word2);
     }
 
-    TxnId(final ByteBuffer buf) {
-        id = new byte[KEY_LEN];
-        buf.get(id, 0, KEY_LEN);
+    // Compares against an id in a message without copying it out.
+    boolean matches(final Data.Reader data) {
+        return Ids.matches(data, word0, word1, word2);
     }
 
     @Override
     public String toString() {
-        final String all = Hex.encodeHexString(id);
+        final String all = Ids.toHex(word0, word1, word2);
         return String.format("TxnId:%s-%s-%s-%s", all.substring(0, 16), all.substring(16, 24), all.substring(24, 32), all.substring(32, 40));
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(id);
+        return hash;
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (obj != null && obj instanceof TxnId) {
-            return Arrays.equals(id, ((TxnId) obj).id);
+        if (obj == this) {
+            return true;
+        } else if (obj != null && obj instanceof TxnId) {
+            final TxnId that = (TxnId) obj;
+            return hash == that.hash && word0 == that.word0 && word1 == that.word1 && word2 == that.word2;
         }
         return false;
     }
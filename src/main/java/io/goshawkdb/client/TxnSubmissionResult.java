@@ -1,15 +1,61 @@
 package io.goshawkdb.client;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
 
 import io.goshawkdb.client.capnp.TransactionCap;
 
+// The completion slot for a submitted txn. The event loop fills in the outcome fields and then
+// calls complete, which publishes them through the volatile done flag and wakes whoever is
+// waiting: either a blocked thread, or an async future.
 final class TxnSubmissionResult {
 
-    TransactionCap.ClientTxnOutcome.Reader outcome;
+    final TxnId txnId;
+    // The encoded txn. It is released on completion, so must only be used before then.
+    final MessageReaderRefCount frame;
+    private final Thread waiter;
+    private final CompletableFuture<TxnSubmissionResult> future;
+    final long submittedAt = System.nanoTime();
+    // Retry txns are held by the server until one of the objects they read changes, so their
+    // round trip says nothing about the latency of the host.
+    final boolean retry;
+    // Non-null if the txn loads this var, in which case loaded is set, on abort, to a copy of its
+    // entry, or to null if the server didn't send it.
+    final VarUUId loading;
+    Cache.ValueRef loaded;
+
+    TransactionCap.ClientTxnOutcome.Which outcome;
+    TxnId finalTxnId;
     List<VarUUId> modifiedVars;
-    MessageReaderRefCount reader;
+    String error;
+    private volatile boolean done = false;
+
+    TxnSubmissionResult(final TxnId id, final MessageReaderRefCount txn, final VarUUId load, final Thread w, final CompletableFuture<TxnSubmissionResult> f) {
+        txnId = id;
+        frame = txn;
+        loading = load;
+        retry = ClientTxnEncoder.clientTxn(txn).getRetry();
+        waiter = w;
+        future = f;
+    }
+
+    void complete() {
+        frame.release();
+        done = true;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        } else if (future != null) {
+            if (error == null) {
+                future.complete(this);
+            } else {
+                future.completeExceptionally(new IllegalStateException(error));
+            }
+        }
+    }
 
-    TxnSubmissionResult() {
+    // Must only be called by the waiter thread.
+    void await(final WaitStrategy waitStrategy) {
+        waitStrategy.await(this, () -> done);
     }
 }
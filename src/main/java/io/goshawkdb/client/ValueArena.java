@@ -0,0 +1,35 @@
+package io.goshawkdb.client;
+
+import java.nio.ByteBuffer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+// Off-heap storage for cached values, shared by all the connections from a factory. Values are
+// copied into buffers from a pooled allocator of their own, which carves them out of large native
+// chunks in size classes, so cached values neither burden the GC nor keep network buffers alive.
+// A value's buffer is returned to the pool when the last reference to it is released: when the
+// cache has dropped it, and no txn is still reading it.
+final class ValueArena {
+
+    // Chunks are PAGE_SIZE << MAX_ORDER bytes (16MB).
+    static final int PAGE_SIZE = 8192;
+    static final int MAX_ORDER = 11;
+
+    private final PooledByteBufAllocator allocator;
+
+    ValueArena() {
+        // No heap arenas, and no thread-local caches: values are allocated on event loops but
+        // released from any thread, and may stay cached for a long time.
+        final int arenas = Math.max(1, Runtime.getRuntime().availableProcessors());
+        allocator = new PooledByteBufAllocator(true, 0, arenas, PAGE_SIZE, MAX_ORDER, 0, 0, 0);
+    }
+
+    // Returns a buffer holding a copy of the remaining bytes of value, which the caller owns.
+    ByteBuf copy(final ByteBuffer value) {
+        final int len = value.remaining();
+        final ByteBuf slab = allocator.directBuffer(len, len);
+        slab.writeBytes(value.duplicate());
+        return slab;
+    }
+}
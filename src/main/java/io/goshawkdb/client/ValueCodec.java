@@ -0,0 +1,50 @@
+package io.goshawkdb.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses object values on their way to the server, and decompresses them on their way back.
+ * Set a codec on a connection with {@link Connection#setValueCodec(ValueCodec, int)}: values at
+ * least as big as the threshold are then compressed when a transaction commits, and decompressed
+ * transparently when read through {@link GoshawkObjRef#getValue()}. Compressed values carry a
+ * small header naming the codec that compressed them, so compressed and uncompressed objects can
+ * coexist, and a connection can read values written with any codec it knows, regardless of which
+ * codec it writes with. Connections on which no codec has been set or registered never add or
+ * interpret the header, so values are stored exactly as written unless compression is opted into.
+ *
+ * Implementations must be thread safe.
+ */
+public interface ValueCodec {
+
+    /**
+     * DEFLATE at its fastest setting, using the JDK's zlib. It suits text-like values such as
+     * JSON. Other algorithms, such as LZ4, can be plugged in by implementing this interface.
+     */
+    ValueCodec DEFLATE = new DeflateValueCodec();
+
+    /**
+     * @return the codec's identifier, which is stored in the header of each value it compresses.
+     * Must be between 16 and 255 for codecs other than those supplied with the client, which
+     * reserve 1 to 15, and must always identify the same algorithm for any data written with it.
+     */
+    int id();
+
+    /**
+     * Compress a value.
+     *
+     * @param src The value, from its position to its limit.
+     * @return the compressed value, from its position to its limit, or null if the value does not
+     * compress.
+     */
+    ByteBuffer compress(ByteBuffer src);
+
+    /**
+     * Decompress a value.
+     *
+     * @param src       Exactly the bytes previously returned by {@link #compress(ByteBuffer)}, from
+     *                  position to limit.
+     * @param rawLength The length of the original value.
+     * @return the original value, from position 0 to its limit.
+     */
+    ByteBuffer decompress(ByteBuffer src, int rawLength);
+}
@@ -0,0 +1,126 @@
+package io.goshawkdb.client;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A connection's value codecs: the one it compresses with, if any, and all those it can decompress.
+//
+// An encoded value is MAGIC, the codec's id (one byte), the raw length (four bytes, big endian),
+// and then the codec's output. Values without the magic are plain. A plain value which happens to
+// start with the magic is written with the IDENTITY codec, so it can't be mistaken for an encoded
+// one.
+//
+// The format is opt-in: until a codec has been set or registered, values are neither encoded nor
+// decoded, so values are stored exactly as written, as other clients expect.
+final class ValueCodecs {
+
+    // "GDBz"
+    static final int MAGIC = 0x4744427a;
+    static final int HEADER_SIZE = 9;
+    static final int IDENTITY = 0;
+    // Ids below this are reserved for the codecs supplied with the client.
+    static final int FIRST_CUSTOM_ID = 16;
+    // No value can be bigger than the largest message we accept. The raw length is checked before
+    // anything is allocated for it: a value that isn't ours may merely start with the magic.
+    static final int MAX_RAW_LENGTH = CapnProtoCodec.MAX_TOTAL_SIZE;
+
+    private final AtomicReferenceArray<ValueCodec> known = new AtomicReferenceArray<>(256);
+    private volatile ValueCodec codec = null;
+    private volatile int threshold = 0;
+    private volatile boolean enabled = false;
+
+    ValueCodecs() {
+        known.set(DeflateValueCodec.ID, ValueCodec.DEFLATE);
+    }
+
+    void set(final ValueCodec c, final int t) {
+        if (c != null) {
+            register(c);
+        }
+        threshold = t;
+        codec = c;
+    }
+
+    ValueCodec get() {
+        return codec;
+    }
+
+    // Enables the format. The codecs supplied with the client are already known.
+    void register(final ValueCodec c) {
+        final int id = c.id();
+        if (id < 0 || id > 255 || known.get(id) != c) {
+            if (id < FIRST_CUSTOM_ID || id > 255) {
+                throw new IllegalArgumentException("Invalid ValueCodec id: " + id + "; must be between " + FIRST_CUSTOM_ID + " and 255");
+            }
+            final ValueCodec existing = known.get(id);
+            if (existing != null && existing.getClass() != c.getClass()) {
+                throw new IllegalArgumentException("ValueCodec id " + id + " is already used by " + existing);
+            }
+            known.set(id, c);
+        }
+        enabled = true;
+    }
+
+    // Returns the bytes to send to the server for the value, which runs from 0 to its limit, just
+    // as it does in the result.
+    ByteBuffer encode(final ByteBuffer value) {
+        if (!enabled) {
+            return value;
+        }
+        final int len = value.limit();
+        final ValueCodec c = codec;
+        if (c != null && len >= threshold) {
+            final ByteBuffer src = value.duplicate();
+            src.position(0);
+            final ByteBuffer compressed = c.compress(src);
+            if (compressed != null && HEADER_SIZE + compressed.remaining() < len) {
+                return withHeader(c.id(), len, compressed);
+            }
+        }
+        if (hasMagic(value)) {
+            final ByteBuffer src = value.duplicate();
+            src.position(0);
+            return withHeader(IDENTITY, len, src);
+        }
+        return value;
+    }
+
+    // The inverse of encode. Plain values are returned as they are; anything else is decoded into
+    // a new buffer.
+    ByteBuffer decode(final ByteBuffer value) {
+        if (!enabled || !hasMagic(value)) {
+            return value;
+        }
+        final int id = value.get(4) & 0xff;
+        final int rawLength = ((value.get(5) & 0xff) << 24) | ((value.get(6) & 0xff) << 16) | ((value.get(7) & 0xff) << 8) | (value.get(8) & 0xff);
+        final ByteBuffer payload = value.duplicate();
+        payload.position(HEADER_SIZE);
+        if (rawLength < 0 || rawLength > MAX_RAW_LENGTH || (id == IDENTITY && rawLength != payload.remaining())) {
+            throw new IllegalStateException("Corrupt encoded value: raw length " + rawLength);
+        }
+        if (id == IDENTITY) {
+            // Copied, as callers rely on decoded values not sharing the message's memory.
+            final ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+            copy.put(payload).flip();
+            return copy.asReadOnlyBuffer();
+        }
+        final ValueCodec c = known.get(id);
+        if (c == null) {
+            throw new IllegalStateException("Value was compressed with unknown ValueCodec " + id);
+        }
+        return c.decompress(payload, rawLength).asReadOnlyBuffer();
+    }
+
+    private static boolean hasMagic(final ByteBuffer value) {
+        return value.limit() >= HEADER_SIZE &&
+                value.get(0) == (byte) (MAGIC >>> 24) && value.get(1) == (byte) (MAGIC >>> 16) &&
+                value.get(2) == (byte) (MAGIC >>> 8) && value.get(3) == (byte) MAGIC;
+    }
+
+    private static ByteBuffer withHeader(final int id, final int rawLength, final ByteBuffer payload) {
+        final ByteBuffer result = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+        result.putInt(MAGIC).put((byte) id).putInt(rawLength).put(payload);
+        result.flip();
+        return result;
+    }
+}
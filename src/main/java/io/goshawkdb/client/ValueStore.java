@@ -0,0 +1,113 @@
+package io.goshawkdb.client;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+
+// Object values shared by the caches of all the connections from a factory. The value written by
+// a txn to an object never changes, so it can be keyed by the object's id and that version, and
+// the connections that cache it can share one copy. Each connection's cache keeps its own version
+// and capability metadata and holds a reference to the shared value; the value is dropped when the
+// last cache that holds it lets go of it, and no txn is still reading it.
+final class ValueStore {
+
+    private static final class Key {
+        final VarUUId vUUId;
+        final TxnId version;
+        private final int hash;
+
+        Key(final VarUUId vUUId, final TxnId version) {
+            this.vUUId = vUUId;
+            this.version = version;
+            hash = 31 * vUUId.hashCode() + version.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj == this) {
+                return true;
+            } else if (obj instanceof Key) {
+                final Key that = (Key) obj;
+                return hash == that.hash && vUUId.equals(that.vUUId) && version.equals(that.version);
+            }
+            return false;
+        }
+    }
+
+    final class Value extends AbstractReferenceCounted {
+        private final Key key;
+        // A read-only view.
+        final ByteBuffer value;
+        // The arena buffer holding value, or null if value is on the heap.
+        private final ByteBuf slab;
+
+        private Value(final Key key, final ByteBuffer value) {
+            this.key = key;
+            if (arena != null) {
+                slab = arena.copy(value);
+                this.value = slab.nioBuffer(0, slab.writerIndex()).asReadOnlyBuffer();
+            } else {
+                slab = null;
+                final ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+                copy.put(value.duplicate()).flip();
+                this.value = copy.asReadOnlyBuffer();
+            }
+        }
+
+        @Override
+        public ReferenceCounted touch(final Object hint) {
+            return this;
+        }
+
+        @Override
+        protected void deallocate() {
+            values.remove(key, this);
+            if (slab != null) {
+                slab.release();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Value> values = new ConcurrentHashMap<>();
+    // Null unless values are to be held off-heap.
+    private final ValueArena arena;
+
+    ValueStore(final ValueArena arena) {
+        this.arena = arena;
+    }
+
+    // Returns the shared copy of the value that version wrote to vUUId, retained on behalf of the
+    // caller, copying value out of the message to create it if no one else holds it.
+    Value share(final VarUUId vUUId, final TxnId version, final ByteBuffer value) {
+        final Key key = new Key(vUUId, version);
+        while (true) {
+            final Value existing = values.get(key);
+            if (existing != null) {
+                try {
+                    existing.retain();
+                    return existing;
+                } catch (final IllegalReferenceCountException e) {
+                    // Released as we found it: it's on its way out of the map.
+                    values.remove(key, existing);
+                    continue;
+                }
+            }
+            // Copy before publishing, so that no one can see a value that isn't there yet. If we
+            // lose the race to publish, our copy is thrown away.
+            final Value created = new Value(key, value);
+            if (values.putIfAbsent(key, created) == null) {
+                return created;
+            }
+            created.release();
+        }
+    }
+}
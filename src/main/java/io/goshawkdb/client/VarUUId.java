@@ -1,38 +1,50 @@
 package io.goshawkdb.client;
 
-import org.apache.commons.codec.binary.Hex;
-
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-
-import static io.goshawkdb.client.ConnectionFactory.KEY_LEN;
+import org.capnproto.Data;
 
 /**
  * Representation of GoshawkDB Object Ids. Every object within GoshawkDB has a unique id.
  */
 public class VarUUId {
 
-    final byte[] id;
+    // The id's bytes, as big-endian words.
+    final long word0;
+    final long word1;
+    final int word2;
+    private final int hash;
+
+    VarUUId(final long w0, final long w1, final int w2) {
+        word0 = w0;
+        word1 = w1;
+        word2 = w2;
+        hash = Ids.hash(w0, w1, w2);
+    }
 
-    VarUUId(final ByteBuffer buf) {
-        id = new byte[KEY_LEN];
-        buf.get(id, 0, KEY_LEN);
+    VarUUId(final Data.Reader data) {
+        Ids.checkLength(data);
+        word0 = Ids.word0(data);
+        word1 = Ids.word1(data);
+        word2 = Ids.word2(data);
+        hash = Ids.hash(word0, word1, word2);
     }
 
     @Override
     public String toString() {
-        return "VarUUId:" + Hex.encodeHexString(id);
+        return "VarUUId:" + Ids.toHex(word0, word1, word2);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(id);
+        return hash;
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (obj != null && obj instanceof VarUUId) {
-            return Arrays.equals(id, ((VarUUId) obj).id);
+        if (obj == this) {
+            return true;
+        } else if (obj != null && obj instanceof VarUUId) {
+            final VarUUId that = (VarUUId) obj;
+            return hash == that.hash && word0 == that.word0 && word1 == that.word1 && word2 == that.word2;
         }
         return false;
     }
@@ -44,6 +56,6 @@ public class VarUUId {
      * @return The object identifier as a byte array.
      */
     public byte[] asBytes() {
-        return id.clone();
+        return Ids.toBytes(word0, word1, word2);
     }
 }
@@ -0,0 +1,210 @@
+package io.goshawkdb.client;
+
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// An open addressing hash map keyed by VarUUId. The keys are stored inline, as the three words of
+// their id, alongside their hash in parallel arrays, so there is no per-entry node or key
+// object, and probing only compares primitives. Values may not be null. Not thread safe.
+//
+// The arrays are swapped as a unit on resize, and removal only moves entries within them, so get
+// may safely race with writers inside a StampedLock optimistic read: it always terminates
+// without throwing, and the stamp is then validated to decide whether its result can be used.
+final class VarUUIdMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Table {
+        final long[] word0;
+        final long[] word1;
+        final int[] word2;
+        final int[] hashes;
+        final Object[] values;
+        final int mask;
+
+        Table(final int capacity) {
+            word0 = new long[capacity];
+            word1 = new long[capacity];
+            word2 = new int[capacity];
+            hashes = new int[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private Table table;
+    private int size = 0;
+
+    VarUUIdMap() {
+        this(MIN_CAPACITY);
+    }
+
+    VarUUIdMap(final int expectedSize) {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    // Keep the load factor at or below 1/2, so that linear probes stay short.
+    private static int capacityFor(final int expectedSize) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize) * 4 - 1));
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final VarUUId vUUId) {
+        final Table t = table;
+        final long w0 = vUUId.word0;
+        final long w1 = vUUId.word1;
+        final int w2 = vUUId.word2;
+        final int h = vUUId.hashCode();
+        for (int idx = h & t.mask, probes = 0; probes <= t.mask; idx = (idx + 1) & t.mask, probes++) {
+            final Object v = t.values[idx];
+            if (v == null) {
+                return null;
+            } else if (t.hashes[idx] == h && t.word0[idx] == w0 && t.word1[idx] == w1 && t.word2[idx] == w2) {
+                return (V) v;
+            }
+        }
+        return null;
+    }
+
+    // Returns the previous value, or null if there was none.
+    V put(final VarUUId vUUId, final V value) {
+        return put(vUUId, value, true);
+    }
+
+    // Returns the existing value, or null if there was none and value has been added.
+    V putIfAbsent(final VarUUId vUUId, final V value) {
+        return put(vUUId, value, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(final VarUUId vUUId, final V value, final boolean replace) {
+        if (value == null) {
+            throw new NullPointerException("Null value for " + vUUId);
+        }
+        final long w0 = vUUId.word0;
+        final long w1 = vUUId.word1;
+        final int w2 = vUUId.word2;
+        final int h = vUUId.hashCode();
+        final Table t = table;
+        int idx = h & t.mask;
+        while (true) {
+            final Object v = t.values[idx];
+            if (v == null) {
+                break;
+            } else if (t.hashes[idx] == h && t.word0[idx] == w0 && t.word1[idx] == w1 && t.word2[idx] == w2) {
+                if (replace) {
+                    t.values[idx] = value;
+                }
+                return (V) v;
+            }
+            idx = (idx + 1) & t.mask;
+        }
+        if ((size + 1) * 2 > t.values.length) {
+            resize(t.values.length * 2);
+            insert(table, w0, w1, w2, h, value);
+        } else {
+            // Publish the value last: it marks the slot as occupied.
+            t.word0[idx] = w0;
+            t.word1[idx] = w1;
+            t.word2[idx] = w2;
+            t.hashes[idx] = h;
+            t.values[idx] = value;
+        }
+        size++;
+        return null;
+    }
+
+    // Returns the removed value, or null if there was none. Later entries of the same probe run
+    // are shifted back into the hole, so that there are no tombstones and get can still stop at
+    // the first empty slot.
+    @SuppressWarnings("unchecked")
+    V remove(final VarUUId vUUId) {
+        final long w0 = vUUId.word0;
+        final long w1 = vUUId.word1;
+        final int w2 = vUUId.word2;
+        final int h = vUUId.hashCode();
+        final Table t = table;
+        int hole = h & t.mask;
+        while (true) {
+            final Object v = t.values[hole];
+            if (v == null) {
+                return null;
+            } else if (t.hashes[hole] == h && t.word0[hole] == w0 && t.word1[hole] == w1 && t.word2[hole] == w2) {
+                break;
+            }
+            hole = (hole + 1) & t.mask;
+        }
+        final V removed = (V) t.values[hole];
+        for (int idx = (hole + 1) & t.mask; t.values[idx] != null; idx = (idx + 1) & t.mask) {
+            // The entry at idx may only move back to the hole if its home slot is not after the
+            // hole in the probe run, or it would no longer be found.
+            final int home = t.hashes[idx] & t.mask;
+            if (((idx - home) & t.mask) >= ((idx - hole) & t.mask)) {
+                t.word0[hole] = t.word0[idx];
+                t.word1[hole] = t.word1[idx];
+                t.word2[hole] = t.word2[idx];
+                t.hashes[hole] = t.hashes[idx];
+                t.values[hole] = t.values[idx];
+                hole = idx;
+            }
+        }
+        t.values[hole] = null;
+        size--;
+        return removed;
+    }
+
+    void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(final Consumer<? super V> action) {
+        final Object[] values = table.values;
+        for (Object v : values) {
+            if (v != null) {
+                action.accept((V) v);
+            }
+        }
+    }
+
+    // As forEach, but also passes each value's key, which has to be recreated from its words.
+    @SuppressWarnings("unchecked")
+    void forEachEntry(final BiConsumer<VarUUId, ? super V> action) {
+        final Table t = table;
+        for (int idx = 0; idx < t.values.length; idx++) {
+            final Object v = t.values[idx];
+            if (v != null) {
+                action.accept(new VarUUId(t.word0[idx], t.word1[idx], t.word2[idx]), (V) v);
+            }
+        }
+    }
+
+    private void resize(final int capacity) {
+        final Table old = table;
+        final Table t = new Table(capacity);
+        for (int idx = 0; idx < old.values.length; idx++) {
+            final Object v = old.values[idx];
+            if (v != null) {
+                insert(t, old.word0[idx], old.word1[idx], old.word2[idx], old.hashes[idx], v);
+            }
+        }
+        table = t;
+    }
+
+    private static void insert(final Table t, final long w0, final long w1, final int w2, final int h, final Object value) {
+        int idx = h & t.mask;
+        while (t.values[idx] != null) {
+            idx = (idx + 1) & t.mask;
+        }
+        t.word0[idx] = w0;
+        t.word1[idx] = w1;
+        t.word2[idx] = w2;
+        t.hashes[idx] = h;
+        t.values[idx] = value;
+    }
+}
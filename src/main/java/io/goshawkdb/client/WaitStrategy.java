@@ -0,0 +1,53 @@
+package io.goshawkdb.client;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Determines how a thread running a transaction waits for the GoshawkDB node to respond to a
+ * submission. The default, Park, uses no CPU whilst waiting. The spinning strategies trade CPU for
+ * a lower wake-up latency, which can be worthwhile when the node is close and round trips are
+ * short. Waiting for a retry always uses Park, as it may take arbitrarily long. The strategy can
+ * be set for a {@link Connection} or for an individual transaction.
+ */
+public enum WaitStrategy {
+    /**
+     * Block the thread until the response arrives.
+     */
+    Park,
+    /**
+     * Spin for a short while, then block the thread.
+     */
+    SpinThenPark,
+    /**
+     * Spin for a short while, then repeatedly yield the thread until the response arrives.
+     */
+    SpinThenYield,
+    /**
+     * Spin until the response arrives. This occupies a core for the whole round trip.
+     */
+    BusySpin;
+
+    static final int SPIN_LIMIT = 10000;
+
+    // Returns once done returns true. Interrupts are deferred until then.
+    void await(final Object blocker, final BooleanSupplier done) {
+        int spins = 0;
+        boolean interrupted = false;
+        while (!done.getAsBoolean()) {
+            if (this == BusySpin || (this != Park && spins < SPIN_LIMIT)) {
+                spins++;
+            } else if (this == SpinThenYield) {
+                Thread.yield();
+            } else {
+                LockSupport.park(blocker);
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package io.goshawkdb.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.netty.channel.Channel;
+
+// Coalesces outbound messages written from any thread. Rather than each writer scheduling its own
+// write and flush on the event loop, messages are queued and the event loop drains the queue,
+// flushing once per batch. Under load this puts many frames into each gathering write; when idle,
+// a message is written on the very next turn of the event loop, so no latency is added.
+final class WriteBatcher implements Runnable {
+
+    // The most frames written before a flush. This bounds how many others the first frame of a
+    // batch can queue behind, and so only indirectly how long it waits to be sent.
+    static final int MAX_BATCH = 128;
+
+    private final Channel channel;
+    private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    WriteBatcher(final Channel ch) {
+        channel = ch;
+    }
+
+    void write(final Object msg) {
+        queue.add(msg);
+        if (scheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        // Clear the flag before draining: anything queued after this point either gets drained
+        // below or schedules another run.
+        scheduled.set(false);
+        int batched = 0;
+        Object msg;
+        while ((msg = queue.poll()) != null) {
+            channel.write(msg, channel.voidPromise());
+            batched++;
+            if (batched == MAX_BATCH) {
+                channel.flush();
+                batched = 0;
+            }
+        }
+        if (batched != 0) {
+            channel.flush();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package io.goshawkdb.client;
+
+// Exposes package-private connection internals to the tests.
+public final class ConnectionAccess {
+
+    private ConnectionAccess() {
+    }
+
+    public static void dropChannel(final Connection c) throws InterruptedException {
+        c.dropChannel();
+    }
+}
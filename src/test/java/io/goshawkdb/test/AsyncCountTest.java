@@ -0,0 +1,60 @@
+package io.goshawkdb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import io.goshawkdb.client.Connection;
+import io.goshawkdb.client.GoshawkObjRef;
+import io.goshawkdb.client.TransactionResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncCountTest extends TestBase {
+
+    public AsyncCountTest() throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, InvalidKeyException, IOException {
+        super();
+    }
+
+    @Test
+    public void asyncCount() throws Exception {
+        try {
+            final Connection c = createConnections(1)[0];
+            setRootToZeroInt64(c);
+            final int txnCount = 100;
+            final long start = System.nanoTime();
+            final List<CompletableFuture<TransactionResult<Long>>> futures = new ArrayList<>(txnCount);
+            for (int idx = 0; idx < txnCount; idx++) {
+                futures.add(c.runTransactionAsync(txn -> {
+                    final GoshawkObjRef root = getRoot(txn);
+                    final ByteBuffer valBuf = root.getValue().order(ByteOrder.BIG_ENDIAN);
+                    final long val = valBuf.getLong(0) + 1;
+                    root.set(valBuf.putLong(0, val));
+                    return val;
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+            for (CompletableFuture<TransactionResult<Long>> future : futures) {
+                assertTrue(future.get().isSuccessful());
+            }
+            final long end = System.nanoTime();
+            System.out.println("Elapsed time: " + ((double) (end - start)) / 1000000D + "ms");
+            final long result = runTransaction(c, txn -> getRoot(txn).getValue().order(ByteOrder.BIG_ENDIAN).getLong(0));
+            assertEquals(txnCount, result);
+        } finally {
+            shutdown();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.goshawkdb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+
+import io.goshawkdb.client.CacheStats;
+import io.goshawkdb.client.Connection;
+import io.goshawkdb.client.GoshawkObjRef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheLimitTest extends TestBase {
+
+    private static final int OBJ_COUNT = 64;
+    private static final int OBJ_SIZE = 1024;
+    private static final int HOT_COUNT = 4;
+    private static final int HOT_ROUNDS = 3;
+
+    public CacheLimitTest() throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, InvalidKeyException, IOException {
+        super();
+    }
+
+    @Test
+    public void evictedObjectsReload() throws InterruptedException {
+        try {
+            // Room for only a quarter of the objects.
+            setCacheLimit(OBJ_COUNT * OBJ_SIZE / 4);
+            final Connection c = createConnections(1)[0];
+            final GoshawkObjRef pinned = runTransaction(c, txn -> {
+                final GoshawkObjRef[] objs = new GoshawkObjRef[OBJ_COUNT];
+                for (int idx = 0; idx < OBJ_COUNT; idx++) {
+                    objs[idx] = txn.createObject(value(idx));
+                }
+                getRoot(txn).set(ByteBuffer.allocate(0), objs);
+                return objs[0];
+            });
+            c.pin(pinned);
+            for (int round = 0; round < 3; round++) {
+                runTransaction(c, txn -> {
+                    final GoshawkObjRef[] objs = getRoot(txn).getReferences();
+                    assertEquals(OBJ_COUNT, objs.length);
+                    for (int idx = 0; idx < OBJ_COUNT; idx++) {
+                        assertEquals(value(idx), objs[idx].getValue());
+                    }
+                    return null;
+                });
+            }
+            // A few objects read over and over stay cached, although they are not pinned: only the
+            // first round may need to load them.
+            final CacheStats before = c.getCacheStats();
+            for (int round = 0; round < HOT_ROUNDS; round++) {
+                runTransaction(c, txn -> {
+                    final GoshawkObjRef[] objs = getRoot(txn).getReferences();
+                    for (int idx = 1; idx <= HOT_COUNT; idx++) {
+                        assertEquals(value(idx), objs[idx].getValue());
+                    }
+                    return null;
+                });
+            }
+            c.unpin(pinned);
+            final CacheStats stats = c.getCacheStats();
+            assertTrue(stats.toString(), stats.misses - before.misses <= HOT_COUNT);
+            assertTrue(stats.toString(), stats.hits - before.hits >= (HOT_ROUNDS - 1) * HOT_COUNT);
+            assertTrue(stats.toString(), stats.evictions > 0 && stats.misses > 0);
+            assertTrue(stats.toString(), stats.entries < OBJ_COUNT && stats.valueBytes < OBJ_COUNT * OBJ_SIZE);
+        } finally {
+            shutdown();
+        }
+    }
+
+    @Test
+    public void offHeapValues() throws InterruptedException {
+        try {
+            setOffHeapCache(true);
+            setCacheLimit(OBJ_COUNT * OBJ_SIZE / 4);
+            final Connection[] conns = createConnections(2);
+            runTransaction(conns[0], txn -> {
+                final GoshawkObjRef[] objs = new GoshawkObjRef[OBJ_COUNT];
+                for (int idx = 0; idx < OBJ_COUNT; idx++) {
+                    objs[idx] = txn.createObject(value(idx));
+                }
+                getRoot(txn).set(ByteBuffer.allocate(0), objs);
+                return null;
+            });
+            // Both the writer's cache, filled from its own txn, and the reader's, filled from the
+            // server, hold the values off-heap.
+            for (Connection c : conns) {
+                runTransaction(c, txn -> {
+                    final GoshawkObjRef[] objs = getRoot(txn).getReferences();
+                    for (int idx = 0; idx < OBJ_COUNT; idx++) {
+                        final ByteBuffer value = objs[idx].getValue();
+                        assertFalse(value.isDirect());
+                        assertEquals(value(idx), value);
+                    }
+                    return null;
+                });
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    @Test
+    public void sharedValues() throws InterruptedException {
+        try {
+            setShareCachedValues(true);
+            final Connection[] conns = createConnections(3);
+            runTransaction(conns[0], txn -> {
+                getRoot(txn).set(value(0), txn.createObject(value(1)));
+                return null;
+            });
+            for (int round = 0; round < 2; round++) {
+                final int writer = round;
+                runTransaction(conns[writer], txn -> {
+                    getRoot(txn).getReferences()[0].set(value(writer + 2));
+                    return null;
+                });
+                for (Connection c : conns) {
+                    runTransaction(c, txn -> {
+                        final GoshawkObjRef root = getRoot(txn);
+                        assertEquals(value(0), root.getValue());
+                        assertEquals(value(writer + 2), root.getReferences()[0].getValue());
+                        return null;
+                    });
+                }
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    private static ByteBuffer value(final int idx) {
+        final ByteBuffer buf = ByteBuffer.allocate(OBJ_SIZE);
+        buf.putInt(0, idx);
+        return buf;
+    }
+}
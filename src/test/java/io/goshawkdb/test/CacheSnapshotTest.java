@@ -0,0 +1,63 @@
+package io.goshawkdb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+
+import io.goshawkdb.client.Connection;
+import io.goshawkdb.client.GoshawkObjRef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CacheSnapshotTest extends TestBase {
+
+    public CacheSnapshotTest() throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, InvalidKeyException, IOException {
+        super();
+    }
+
+    @Test
+    public void saveAndLoad() throws InterruptedException, IOException {
+        final Path path = Files.createTempFile("goshawkdb", ".snapshot");
+        try {
+            final int objCount = 200;
+            final Connection[] conns = createConnections(2);
+            setRootToNZeroObjs(conns[0], objCount);
+            conns[0].warmCache(1);
+            final int saved = conns[0].saveCacheSnapshot(path);
+            assertTrue("Saved " + saved, saved >= objCount);
+
+            final Connection c = conns[1];
+            assertEquals(saved, c.loadCacheSnapshot(path));
+            // Everything is now cached.
+            assertEquals(0, c.warmCache(1));
+
+            // The snapshot is now out of date, which the reader must discover.
+            runTransaction(conns[0], txn -> {
+                getRoot(txn).getReferences()[0].set(ByteBuffer.allocate(16));
+                return null;
+            });
+            runTransaction(c, txn -> {
+                final GoshawkObjRef[] objs = getRoot(txn).getReferences();
+                assertEquals(objCount, objs.length);
+                assertEquals(ByteBuffer.allocate(16), objs[0].getValue());
+                for (int idx = 1; idx < objCount; idx++) {
+                    assertEquals(ByteBuffer.allocate(8), objs[idx].getValue());
+                }
+                return null;
+            });
+        } finally {
+            Files.deleteIfExists(path);
+            shutdown();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.goshawkdb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.TimeUnit;
+
+import io.goshawkdb.client.Connection;
+
+import static org.junit.Assert.assertTrue;
+
+public class ClusterConnectTest extends TestBase {
+
+    public ClusterConnectTest() throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, InvalidKeyException, IOException {
+        super();
+    }
+
+    @Test
+    public void clusterConnect() throws Exception {
+        try {
+            final Connection c = createClusterConnection();
+            assertTrue(c.isConnected());
+            for (int idx = 0; idx < 100; idx++) {
+                setRootToZeroInt64(c);
+            }
+            final long rtt = roundTripTime(c, TimeUnit.MICROSECONDS);
+            System.out.println(c.getHost() + ": round trip time: " + rtt + "us");
+            assertTrue(rtt > 0);
+            final Connection c2 = createClusterConnection();
+            assertTrue(c2.isConnected());
+        } finally {
+            shutdown();
+        }
+    }
+}
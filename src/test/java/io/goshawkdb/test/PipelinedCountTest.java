@@ -0,0 +1,66 @@
+package io.goshawkdb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Queue;
+
+import io.goshawkdb.client.Connection;
+import io.goshawkdb.client.GoshawkObjRef;
+import io.goshawkdb.client.TxnId;
+
+import static org.junit.Assert.fail;
+
+public class PipelinedCountTest extends TestBase {
+
+    public PipelinedCountTest() throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, InvalidKeyException, IOException {
+        super();
+    }
+
+    @Test
+    public void pipelinedCount() throws Exception {
+        try {
+            final int threadCount = 8;
+            final Connection conn = createConnections(1)[0];
+            final TxnId origRootVsn = setRootToNZeroObjs(conn, threadCount);
+
+            // every thread shares the same connection, so their transactions are pipelined
+            inParallel(threadCount, new Connection[]{conn}, (final int tId, final Connection c, final Queue<Exception> exceptionQ) -> {
+                awaitRootVersionChange(c, origRootVsn);
+                final GoshawkObjRef objRef = runTransaction(c, txn ->
+                        getRoot(txn).getReferences()[tId]
+                );
+                final long start = System.nanoTime();
+                long expected = 0L;
+                for (int idx = 0; idx < 1000; idx++) {
+                    final long expectedCopy = expected;
+                    expected = runTransaction(c, txn -> {
+                        final GoshawkObjRef obj = txn.getObject(objRef);
+                        final ByteBuffer valBuf = obj.getValue().order(ByteOrder.BIG_ENDIAN);
+                        final long old = valBuf.getLong(0);
+                        if (old == expectedCopy) {
+                            final long val = old + 1;
+                            obj.set(valBuf.putLong(0, val));
+                            return val;
+                        } else {
+                            fail("" + tId + ": Expected " + expectedCopy + " but found " + old);
+                            return null;
+                        }
+                    });
+                }
+                final long end = System.nanoTime();
+                System.out.println("" + tId + ": Elapsed time: " + ((double) (end - start)) / 1000000D + "ms");
+            });
+        } finally {
+            shutdown();
+        }
+    }
+}
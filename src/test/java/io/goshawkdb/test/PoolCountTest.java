@@ -0,0 +1,70 @@
+package io.goshawkdb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Queue;
+
+import io.goshawkdb.client.Connection;
+import io.goshawkdb.client.ConnectionPool;
+import io.goshawkdb.client.GoshawkObjRef;
+import io.goshawkdb.client.TransactionResult;
+import io.goshawkdb.client.TxnId;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PoolCountTest extends TestBase {
+
+    public PoolCountTest() throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, InvalidKeyException, IOException {
+        super();
+    }
+
+    @Test
+    public void poolCount() throws Exception {
+        try {
+            final int threadCount = 8;
+            final Connection c = createConnections(1)[0];
+            final TxnId origRootVsn = setRootToNZeroObjs(c, threadCount);
+            awaitRootVersionChange(c, origRootVsn);
+            final ConnectionPool pool = createPool(1, 4);
+
+            inParallel(threadCount, new Connection[]{c}, (final int tId, final Connection unused, final Queue<Exception> exceptionQ) -> {
+                final long start = System.nanoTime();
+                long expected = 0L;
+                for (int idx = 0; idx < 1000; idx++) {
+                    final long expectedCopy = expected;
+                    final TransactionResult<Long> result = pool.runTransaction(txn -> {
+                        // GoshawkObjRefs are per connection, so navigate from the root each time
+                        final GoshawkObjRef obj = getRoot(txn).getReferences()[tId];
+                        final ByteBuffer valBuf = obj.getValue().order(ByteOrder.BIG_ENDIAN);
+                        final long old = valBuf.getLong(0);
+                        if (old == expectedCopy) {
+                            final long val = old + 1;
+                            obj.set(valBuf.putLong(0, val));
+                            return val;
+                        } else {
+                            fail("" + tId + ": Expected " + expectedCopy + " but found " + old);
+                            return null;
+                        }
+                    });
+                    assertTrue(result.isSuccessful());
+                    expected = result.result;
+                }
+                final long end = System.nanoTime();
+                System.out.println("" + tId + ": Elapsed time: " + ((double) (end - start)) / 1000000D + "ms");
+            });
+            System.out.println("Pool size: " + pool.size());
+        } finally {
+            shutdown();
+        }
+    }
+}
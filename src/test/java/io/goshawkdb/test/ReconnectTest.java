@@ -0,0 +1,72 @@
+package io.goshawkdb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.TimeUnit;
+
+import io.goshawkdb.client.Connection;
+import io.goshawkdb.client.GoshawkObjRef;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReconnectTest extends TestBase {
+
+    public ReconnectTest() throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, InvalidKeyException, IOException {
+        super();
+    }
+
+    @Test
+    public void cacheSurvivesReconnection() throws InterruptedException {
+        try {
+            final int objCount = 50;
+            setReconnect(10, 100, 10000, TimeUnit.MILLISECONDS);
+            final Connection[] conns = createConnections(2);
+            final Connection c = conns[0];
+            setRootToNZeroObjs(c, objCount);
+            readAll(c, objCount, ByteBuffer.allocate(8));
+            final long misses = c.getCacheStats().misses;
+
+            dropConnection(c);
+            // Nothing changed whilst we were away, so everything is read from the cache.
+            readAll(c, objCount, ByteBuffer.allocate(8));
+            assertEquals(misses, c.getCacheStats().misses);
+
+            // A change made by someone else is discovered, even though the server knows nothing
+            // of what we cached before reconnecting.
+            dropConnection(c);
+            runTransaction(conns[1], txn -> {
+                getRoot(txn).getReferences()[0].set(ByteBuffer.allocate(16));
+                return null;
+            });
+            runTransaction(c, txn -> {
+                final GoshawkObjRef[] objs = getRoot(txn).getReferences();
+                assertEquals(ByteBuffer.allocate(16), objs[0].getValue());
+                for (int idx = 1; idx < objCount; idx++) {
+                    assertEquals(ByteBuffer.allocate(8), objs[idx].getValue());
+                }
+                return null;
+            });
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void readAll(final Connection c, final int objCount, final ByteBuffer expected) {
+        runTransaction(c, txn -> {
+            final GoshawkObjRef[] objs = getRoot(txn).getReferences();
+            assertEquals(objCount, objs.length);
+            for (GoshawkObjRef obj : objs) {
+                assertEquals(expected, obj.getValue());
+            }
+            return null;
+        });
+    }
+}
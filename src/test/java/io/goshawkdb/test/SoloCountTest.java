@@ -14,7 +14,10 @@ import java.security.spec.InvalidKeySpecException;
 
 import io.goshawkdb.client.Connection;
 import io.goshawkdb.client.GoshawkObjRef;
+import io.goshawkdb.client.TransactionResult;
+import io.goshawkdb.client.WaitStrategy;
 
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class SoloCountTest extends TestBase {
@@ -52,4 +55,38 @@ public class SoloCountTest extends TestBase {
             shutdown();
         }
     }
+
+    @Test
+    public void soloCountWaitStrategies() throws InterruptedException {
+        try {
+            final Connection c = createConnections(1)[0];
+            for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+                setRootToZeroInt64(c);
+                final long start = System.nanoTime();
+                long expected = 0L;
+                for (int idx = 0; idx < 1000; idx++) {
+                    final long expectedCopy = expected;
+                    final TransactionResult<Long> result = c.runTransaction(txn -> {
+                        final GoshawkObjRef root = getRoot(txn);
+                        final ByteBuffer valBuf = root.getValue().order(ByteOrder.BIG_ENDIAN);
+                        final long old = valBuf.getLong(0);
+                        if (old == expectedCopy) {
+                            final long val = old + 1;
+                            root.set(valBuf.putLong(0, val));
+                            return val;
+                        } else {
+                            fail(waitStrategy + ": Expected " + expectedCopy + " but found " + old);
+                            return null;
+                        }
+                    }, waitStrategy);
+                    assertTrue(result.isSuccessful());
+                    expected = result.result;
+                }
+                final long end = System.nanoTime();
+                System.out.println(waitStrategy + ": Elapsed time: " + ((double) (end - start)) / 1000000D + "ms");
+            }
+        } finally {
+            shutdown();
+        }
+    }
 }
@@ -15,10 +15,13 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 
 import io.goshawkdb.client.Certs;
 import io.goshawkdb.client.Connection;
+import io.goshawkdb.client.ConnectionAccess;
 import io.goshawkdb.client.ConnectionFactory;
+import io.goshawkdb.client.ConnectionPool;
 import io.goshawkdb.client.GoshawkObjRef;
 import io.goshawkdb.client.Transaction;
 import io.goshawkdb.client.TransactionFunction;
@@ -26,6 +29,7 @@ import io.goshawkdb.client.TransactionResult;
 import io.goshawkdb.client.TxnId;
 
 import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertTrue;
 
 public class TestBase {
 
@@ -37,6 +41,7 @@ public class TestBase {
     private final Certs certs;
     private final String[] hosts;
     private final List<Connection> connections = new ArrayList<>();
+    private final List<ConnectionPool> pools = new ArrayList<>();
     private final String rootName;
 
     protected TestBase() throws NoSuchProviderException, NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, InvalidKeySpecException, InvalidKeyException {
@@ -77,13 +82,63 @@ public class TestBase {
         return conns;
     }
 
+    protected Connection createClusterConnection() throws InterruptedException {
+        final Connection c = factory.connectToCluster(certs, hosts);
+        assertNotNull(c);
+        connections.add(c);
+        return c;
+    }
+
+    protected long roundTripTime(final Connection c, final TimeUnit unit) {
+        return factory.roundTripTime(c.getHost(), unit);
+    }
+
+    protected void setCacheLimit(final long bytes) {
+        factory.cacheLimit(bytes);
+    }
+
+    protected void setOffHeapCache(final boolean enabled) {
+        factory.offHeapCache(enabled);
+    }
+
+    protected void setShareCachedValues(final boolean enabled) {
+        factory.shareCachedValues(enabled);
+    }
+
+    protected void setReconnect(final long initialDelay, final long maxDelay, final long maxWait, final TimeUnit unit) {
+        factory.reconnect(initialDelay, maxDelay, maxWait, unit);
+    }
+
+    // Drops the connection's socket, as a network failure would, and waits for it to reconnect.
+    protected void dropConnection(final Connection c) throws InterruptedException {
+        ConnectionAccess.dropChannel(c);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!c.isConnected()) {
+            assertTrue("Failed to reconnect", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    protected ConnectionPool createPool(final int minSize, final int maxSize) throws InterruptedException {
+        final ConnectionPool pool = factory.connectPool(certs, minSize, maxSize, hosts);
+        assertNotNull(pool);
+        pools.add(pool);
+        return pool;
+    }
+
     protected void inParallel(final int parCount, final ParRunner runner) throws Exception {
+        inParallel(parCount, createConnections(parCount), runner);
+    }
+
+    /**
+     * Runs parCount threads, sharing the supplied connections between them round-robin.
+     */
+    protected void inParallel(final int parCount, final Connection[] conns, final ParRunner runner) throws Exception {
         final ConcurrentLinkedDeque<Exception> exceptionQueue = new ConcurrentLinkedDeque<>();
-        final Connection[] conns = createConnections(parCount);
         final Thread[] threads = new Thread[parCount];
         for (int idx = 0; idx < parCount; idx++) {
             final int idxCopy = idx;
-            final Connection conn = conns[idxCopy];
+            final Connection conn = conns[idxCopy % conns.length];
             threads[idx] = new Thread(() -> {
                 try {
                     runner.run(idxCopy, conn, exceptionQueue);
@@ -166,6 +221,10 @@ public class TestBase {
             }
         }
         connections.clear();
+        for (final ConnectionPool pool : pools) {
+            pool.close();
+        }
+        pools.clear();
         factory.group.shutdownGracefully();
     }
 
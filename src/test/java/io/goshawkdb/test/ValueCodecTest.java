@@ -0,0 +1,89 @@
+package io.goshawkdb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+
+import io.goshawkdb.client.Connection;
+import io.goshawkdb.client.GoshawkObjRef;
+import io.goshawkdb.client.ValueCodec;
+
+import static org.junit.Assert.assertEquals;
+
+public class ValueCodecTest extends TestBase {
+
+    public ValueCodecTest() throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, InvalidKeyException, IOException {
+        super();
+    }
+
+    @Test
+    public void compressedValues() throws InterruptedException {
+        try {
+            final Connection[] conns = createConnections(2);
+            final Connection writer = conns[0];
+            final Connection reader = conns[1];
+            writer.setValueCodec(ValueCodec.DEFLATE, 64);
+            reader.registerValueCodec(ValueCodec.DEFLATE);
+
+            final StringBuilder sb = new StringBuilder();
+            for (int idx = 0; idx < 1000; idx++) {
+                sb.append("{\"idx\":").append(idx).append(",\"name\":\"value\"},");
+            }
+            final ByteBuffer large = ByteBuffer.wrap(sb.toString().getBytes());
+            final ByteBuffer small = ByteBuffer.wrap("small".getBytes());
+
+            runTransaction(writer, txn -> {
+                final GoshawkObjRef root = getRoot(txn);
+                root.set(large, txn.createObject(small));
+                return null;
+            });
+            // Read back both through the writer's cache, and from the server by a connection which
+            // only decompresses.
+            for (Connection c : conns) {
+                runTransaction(c, txn -> {
+                    final GoshawkObjRef root = getRoot(txn);
+                    assertEquals(large, root.getValue());
+                    assertEquals(small, root.getReferences()[0].getValue());
+                    return null;
+                });
+            }
+            // And a value written uncompressed reads back through the compressing connection.
+            runTransaction(reader, txn -> {
+                getRoot(txn).set(large);
+                return null;
+            });
+            runTransaction(writer, txn -> {
+                assertEquals(large, getRoot(txn).getValue());
+                return null;
+            });
+        } finally {
+            shutdown();
+        }
+    }
+
+    @Test
+    public void plainValuesUntouched() throws InterruptedException {
+        try {
+            final Connection c = createConnections(1)[0];
+            // Starts with the header's magic, but no codec is set, so it must be stored as is.
+            final ByteBuffer value = ByteBuffer.wrap("GDBz\u0001\u0000\u0000\u0000\u0010plain".getBytes());
+            runTransaction(c, txn -> {
+                getRoot(txn).set(value);
+                return null;
+            });
+            runTransaction(c, txn -> {
+                assertEquals(value, getRoot(txn).getValue());
+                return null;
+            });
+        } finally {
+            shutdown();
+        }
+    }
+}
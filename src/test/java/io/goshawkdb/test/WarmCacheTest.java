@@ -0,0 +1,54 @@
+package io.goshawkdb.test;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+
+import io.goshawkdb.client.Connection;
+import io.goshawkdb.client.GoshawkObjRef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WarmCacheTest extends TestBase {
+
+    public WarmCacheTest() throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, InvalidKeyException, IOException {
+        super();
+    }
+
+    @Test
+    public void warmCache() throws InterruptedException {
+        try {
+            final int objCount = 2000;
+            final Connection[] conns = createConnections(2);
+            setRootToNZeroObjs(conns[0], objCount);
+
+            final Connection c = conns[1];
+            // Not following the root's references loads just the roots.
+            final int roots = c.warmCache(1, value -> false);
+            assertTrue(roots > 0);
+            final int loaded = c.warmCache(1);
+            assertTrue("Loaded " + loaded, loaded >= objCount);
+            // Everything is now cached.
+            assertEquals(0, c.warmCache(1));
+
+            runTransaction(c, txn -> {
+                final GoshawkObjRef[] objs = getRoot(txn).getReferences();
+                assertEquals(objCount, objs.length);
+                for (GoshawkObjRef obj : objs) {
+                    assertEquals(ByteBuffer.allocate(8), obj.getValue());
+                }
+                return null;
+            });
+        } finally {
+            shutdown();
+        }
+    }
+}